@@ -17,19 +17,29 @@
 package net.scintill.qmi;
 
 import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A QMI client. It is given stream to send the QMI on, and starts threads to read them
@@ -37,16 +47,43 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 
 public class Client {
-    private InputStream mInput;
-    private OutputStream mOutput;
+    private volatile InputStream mInput;
+    private volatile OutputStream mOutput;
     private PrintStream mDebug;
 
-    private BlockingQueue<Message> mOutputQueue = new LinkedBlockingQueue<>();
+    private OutputQueue mOutputQueue = new OutputQueue(DEFAULT_OUTPUT_QUEUE_CAPACITY, WaitStrategy.Block);
     private final ConcurrentMap<Integer, MessageCallback> mCallbacks = new ConcurrentHashMap<>();
-    private final List<MessageCallback> mIndicationHandlers = new ArrayList<>();
+    private final List<MessageCallback> mIndicationHandlers = new CopyOnWriteArrayList<>();
+    private final List<Runnable> mRecoveryListeners = new CopyOnWriteArrayList<>();
+    private final List<IndicationPublisher> mPublishers = new CopyOnWriteArrayList<>();
+    private final TxIdAllocator mTxIds = new TxIdAllocator();
+    private final ConcurrentMap<ServiceCode, CompletableFuture<Short>> mClientIds = new ConcurrentHashMap<>();
+    private ServiceCode[] mPreallocatedServices = new ServiceCode[0];
+    private ClientIdLeaseFile mLeaseFile;
+    private boolean mReclaimLeases;
+    private final Set<ServiceCode> mReclaimedServices = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private volatile boolean mStopInputThread = false;
+    private Thread mInputThread;
+    private Thread mOutputThread;
+
+    private static final int DEFAULT_OUTPUT_QUEUE_CAPACITY = 1024;
 
-    private boolean mStopInputThread = false;
-    private static final Message THE_STOP_MESSAGE = new Message();
+    /**
+     * How long stop() takes at most, in ms.
+     */
+    public static final long DEFAULT_STOP_TIMEOUT = 3000;
+
+    private FrameDecoder mDecoder; // only used by the input thread
+    private long mFrameReadTime, mFrameDecodedTime; // of the message being dispatched, if tracing; input thread only
+    private volatile TransactionTracer mTracer;
+    private final AtomicLong mMalformedFrames = new AtomicLong();
+    private final AtomicLong mSkippedBytes = new AtomicLong();
+
+    private final RttEstimator mRttEstimator = new RttEstimator(10000, 50, 30000);
+
+    private ThreadFactory mThreadFactory = Thread::new;
+    private ScheduledExecutorService mTimer; // for sendFuture() timeouts, created when first needed
 
     /**
      * @param in QMI input stream
@@ -60,13 +97,145 @@ public class Client {
     }
 
     /**
-     * Start the processing on input/output QMI messages.
+     * Start keeping the stage timings of transactions sent from now on, to find where the time of slow ones goes.
+     * Without this, the cost is a null check at each stage.
+     * @param capacity how many of the most recent transactions to keep
+     * @return the tracer, to export the timings with
+     */
+    public TransactionTracer enableTracing(int capacity) {
+        TransactionTracer tracer = new TransactionTracer(capacity);
+        mTracer = tracer;
+        return tracer;
+    }
+
+    /**
+     * @return the tracer, or null if tracing is not enabled
+     */
+    @Nullable
+    public TransactionTracer getTracer() {
+        return mTracer;
+    }
+
+    /**
+     * Set the factory used to create the message pump threads. Must be called before start().
+     * For example, pass VirtualThreads.factory() to run the pumps on virtual threads.
+     * @param threadFactory
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        mThreadFactory = threadFactory;
+    }
+
+    /**
+     * Configure the queue of messages waiting to be sent. Must be called before start().
+     * Senders block while the queue is full.
+     * @param capacity maximum number of queued messages per priority (rounded up to a power of two)
+     * @param waitStrategy how the output thread waits for messages
+     */
+    public void setOutputQueue(int capacity, WaitStrategy waitStrategy) {
+        mOutputQueue = new OutputQueue(capacity, waitStrategy);
+    }
+
+    /**
+     * @return the approximate number of messages waiting to be sent
+     */
+    public int getOutputQueueDepth() {
+        return mOutputQueue.size();
+    }
+
+    /**
+     * @param priority
+     * @return the approximate number of messages of the given priority waiting to be sent
+     */
+    public int getOutputQueueDepth(Message.Priority priority) {
+        return mOutputQueue.size(priority);
+    }
+
+    /**
+     * @param priority
+     * @return the number of messages of the given priority that have been taken from the queue for sending
+     */
+    public long getOutputQueueTakenCount(Message.Priority priority) {
+        return mOutputQueue.takenCount(priority);
+    }
+
+    /**
+     * Set services to allocate client IDs for as soon as the client is started, rather than on the first
+     * message sent to them. Must be called before start().
+     * @param services
+     */
+    public void setPreallocatedServices(ServiceCode... services) {
+        mPreallocatedServices = services.clone();
+    }
+
+    /**
+     * Record allocated client IDs in a lease file, so they can be reused or released by a later process,
+     * even one that follows a crash. Must be called before start().
+     * <p>
+     * When reclaiming, client IDs found in the file are used without allocating them again or re-registering
+     * for indications, and they are left allocated by stop(). Otherwise, they are released when starting.
+     * @param file the lease file, which should be specific to the device
+     * @param reclaim true to reuse leased client IDs, false to release them
+     */
+    public void setClientIdLeaseFile(File file, boolean reclaim) {
+        mLeaseFile = new ClientIdLeaseFile(file);
+        mReclaimLeases = reclaim;
+    }
+
+    /**
+     * Start the processing on input/output QMI messages. The threads are daemons, so they don't keep the JVM
+     * running; call stop() to release client IDs before exiting.
      */
     public void start() {
-        new Thread(() -> {
+        if (mLeaseFile != null) {
+            loadLeases();
+        }
+
+        mInputThread = startThread("MessagePumpInput", this::runInputPump);
+
+        mOutputThread = startThread("MessagePumpOutput", () -> {
+            try {
+                for (;;) { // forever
+                    // send output messages
+                    Message msg = mOutputQueue.take();
+                    if (msg == null) break; // stopped
+
+                    TransactionTrace trace = msg.getTrace();
+                    if (trace != null) trace.stamp(TransactionTrace.Stage.Dequeued);
+                    try {
+                        writeMessage(mOutput, msg);
+                        if (trace != null) trace.stamp(TransactionTrace.Stage.Written);
+                    } catch (IOException e) {
+                        // the input thread will notice if the device is gone, so just fail this one
+                        debug("error writing "+msg+": "+e);
+                        failTransaction(msg, new QmiException("error writing message: "+e.getMessage()));
+                        continue;
+                    }
+                    debug(">> " + msg);
+                }
+
+                debug("output thread stopping");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        // these are all queued at once, so the round trips overlap
+        for (ServiceCode service : mPreallocatedServices) {
+            allocateClientId(service);
+        }
+    }
+
+    private void runInputPump() {
+        for (;;) {
             try {
                 while (!mStopInputThread || mCallbacks.size() != 0) {
-                    Message msg = Message.readFromInput(mInput);
+                    mFrameReadTime = 0;
+                    Message msg = readMessage(mInput);
+                    if (mTracer != null) {
+                        mFrameDecodedTime = System.nanoTime();
+                        // subclasses with their own framing don't say when the frame was read
+                        if (mFrameReadTime == 0) mFrameReadTime = mFrameDecodedTime;
+                    }
                     if ((msg.getFlags() & Message.FLAG_INDICATION) == 0) {
                         // responses
                         MessageCallback callback = mCallbacks.remove(getCallbackKey(msg));
@@ -84,50 +253,343 @@ public class Client {
                 }
 
                 debug("input thread stopping");
+                return;
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                if (mStopInputThread) {
+                    // stop() closed the input to unblock us
+                    debug("input thread stopping");
+                    return;
+                }
+                debug("input error: "+e);
+                // nobody is going to answer these, so don't leave their senders hanging
+                failOutstandingTransactions(new QmiException("device error: "+e.getMessage()));
+                if (!recoverInput(e)) {
+                    if (mStopInputThread) {
+                        debug("input thread stopping");
+                        return;
+                    }
+                    throw new RuntimeException(e);
+                }
+                onRecovered();
             }
-        }, "MessagePumpInput").start();
+        }
+    }
 
-        new Thread(() -> {
-            try {
-                for (;;) { // forever
-                    // send output messages
-                    Message msg = mOutputQueue.take();
-                    if (msg == THE_STOP_MESSAGE) break;
+    /**
+     * Called on the input thread when reading fails. Subclasses able to get the device back should do so
+     * (blocking as long as needed, but giving up once isStopping()), and install the new streams with setStreams().
+     * @param e the read error
+     * @return true if the device was recovered, false to give up
+     */
+    protected boolean recoverInput(IOException e) {
+        return false;
+    }
 
-                    msg.writeToOutput(mOutput);
-                    debug(">> " + msg);
-                }
+    /**
+     * Replace the QMI streams, when recovering a device.
+     * @param in
+     * @param out
+     */
+    protected void setStreams(InputStream in, OutputStream out) {
+        mInput = in;
+        mOutput = out;
+    }
 
-                debug("output thread stopping");
-            } catch (IOException | InterruptedException e) {
-                throw new RuntimeException(e);
+    /**
+     * The device came back, and knows nothing of our client IDs or indication registrations any more.
+     */
+    private void onRecovered() {
+        debug("device recovered");
+        for (ServiceCode service : mClientIds.keySet()) {
+            removeLease(service);
+        }
+        mClientIds.clear();
+        mReclaimedServices.clear();
+
+        for (ServiceCode service : mPreallocatedServices) {
+            allocateClientId(service);
+        }
+
+        // listeners may need to send and wait for messages, which can't be done on the input thread
+        startThread("QmiRecovery", () -> {
+            for (Runnable listener : mRecoveryListeners) {
+                listener.run();
+            }
+        });
+    }
+
+    /**
+     * Register to be told when the device has been lost and recovered. Listeners run on their own thread, and may
+     * send messages.
+     * @param listener
+     */
+    public void addRecoveryListener(Runnable listener) {
+        mRecoveryListeners.add(listener);
+    }
+
+    /**
+     * Fail every transaction waiting for a response.
+     * @param e the failure to give their callbacks
+     */
+    protected void failOutstandingTransactions(QmiException e) {
+        for (Integer key : mCallbacks.keySet()) {
+            MessageCallback callback = mCallbacks.remove(key);
+            if (callback != null) {
+                callback.onError(e);
+            }
+        }
+    }
+
+    private void failTransaction(Message msg, QmiException e) {
+        MessageCallback callback = mCallbacks.remove(getCallbackKey(msg));
+        if (callback != null) {
+            callback.onError(e);
+        }
+    }
+
+    private void loadLeases() {
+        Map<ServiceCode, Short> leases;
+        try {
+            leases = mLeaseFile.load();
+        } catch (IOException e) {
+            debug("error reading client ID leases: "+e);
+            return;
+        }
+
+        for (final Map.Entry<ServiceCode, Short> lease : leases.entrySet()) {
+            if (mReclaimLeases) {
+                mClientIds.put(lease.getKey(), CompletableFuture.completedFuture(lease.getValue()));
+                mReclaimedServices.add(lease.getKey());
+            } else {
+                // release whatever a previous process left behind; we don't need to wait for it
+                try {
+                    enqueue(makeDeallocMessage(lease.getKey(), lease.getValue()), response -> {
+                        try {
+                            throwQmiExceptionForMessageResult(response);
+                        } catch (QmiException e) {
+                            debug("error releasing leased client "+lease.getKey()+": "+e);
+                        }
+                        // only if it's still ours: a new client ID may have been leased meanwhile
+                        removeLease(lease.getKey(), lease.getValue());
+                    });
+                } catch (QmiException e) {
+                    debug("error releasing leased client "+lease.getKey()+": "+e);
+                }
             }
-        }, "MessagePumpOutput").start();
+        }
+    }
+
+    private void recordLease(ServiceCode service, short clientId) {
+        if (mLeaseFile == null) return;
+        try {
+            mLeaseFile.put(service, clientId);
+        } catch (IOException e) {
+            debug("error writing client ID lease: "+e);
+        }
+    }
+
+    private void removeLease(ServiceCode service) {
+        if (mLeaseFile == null) return;
+        try {
+            mLeaseFile.remove(service);
+        } catch (IOException e) {
+            debug("error writing client ID lease: "+e);
+        }
+    }
+
+    private void removeLease(ServiceCode service, short clientId) {
+        if (mLeaseFile == null) return;
+        try {
+            mLeaseFile.remove(service, clientId);
+        } catch (IOException e) {
+            debug("error writing client ID lease: "+e);
+        }
     }
 
     /**
-     * Stop the processing of QMI input/output messages.
+     * Read the next message from the QMI input stream (may block). Malformed frames are skipped. Subclasses with
+     * different framing should override this.
+     * @param in
+     * @return the message
+     * @throws IOException
+     */
+    protected Message readMessage(InputStream in) throws IOException {
+        FrameDecoder decoder = mDecoder;
+        if (decoder == null || decoder.getInput() != in) {
+            decoder = new FrameDecoder(in, true, mMalformedFrames, mSkippedBytes);
+            mDecoder = decoder;
+        }
+
+        long malformedFrames = mMalformedFrames.get();
+        Message msg = decoder.next();
+        mFrameReadTime = decoder.getFrameReadTime();
+        if (mMalformedFrames.get() != malformedFrames) {
+            debug("skipped malformed frame(s); "+mMalformedFrames.get()+" so far");
+        }
+        return msg;
+    }
+
+    /**
+     * @return the number of malformed frames that have been skipped in the input
+     */
+    public long getMalformedFrameCount() {
+        return mMalformedFrames.get();
+    }
+
+    /**
+     * @return the number of input bytes that have been skipped to resynchronize after malformed frames
+     */
+    public long getSkippedByteCount() {
+        return mSkippedBytes.get();
+    }
+
+    /**
+     * Write a message to the QMI output stream. Subclasses using a different framing should override this.
+     * @param out
+     * @param msg
+     * @throws IOException
+     */
+    protected void writeMessage(OutputStream out, Message msg) throws IOException {
+        msg.writeToOutput(out);
+    }
+
+    /* package */ Thread startThread(String name, Runnable runnable) {
+        Thread thread = mThreadFactory.newThread(runnable);
+        thread.setName(name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Stop the processing of QMI input/output messages, taking at most DEFAULT_STOP_TIMEOUT. See stop(long).
      */
     public void stop() {
+        stop(DEFAULT_STOP_TIMEOUT);
+    }
+
+    /**
+     * Stop the processing of QMI input/output messages. Client IDs are released all at once (unless they are
+     * leased for reclaiming), then transactions still waiting for a response are failed with QmiCancelledException,
+     * and the streams are closed, which unblocks the input thread.
+     * @param timeout the most time to take, in ms
+     * @return true if the client IDs were released and the message pump threads finished in time
+     */
+    public boolean stop(long timeout) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
         mStopInputThread = true;
-        deallocateClients();
-        mOutputQueue.add(THE_STOP_MESSAGE);
+
+        boolean clean = true;
+        if (mLeaseFile == null || !mReclaimLeases) {
+            clean = deallocateClients(deadline);
+        }
+        mOutputQueue.close();
+        clean &= join(mOutputThread, deadline);
+
+        failOutstandingTransactions(new QmiCancelledException());
+        for (IndicationPublisher publisher : mPublishers) {
+            publisher.close();
+        }
+        synchronized (this) {
+            if (mTimer != null) mTimer.shutdownNow();
+        }
+        closeStreams();
+        clean &= join(mInputThread, deadline);
+        return clean;
     }
 
     /**
-     * Initialize this message for sending -- give it a client ID and transaction ID.
-     * An exception may be thrown if a client ID needs to be allocated, and something goes wrong in that process.
+     * @return true once stop() has been called
+     */
+    protected boolean isStopping() {
+        return mStopInputThread;
+    }
+
+    /**
+     * Close the QMI streams, when stopping. Subclasses holding other resources for the device should
+     * release them too.
+     */
+    protected void closeStreams() {
+        closeQuietly(mInput);
+        closeQuietly(mOutput);
+    }
+
+    private static boolean join(@Nullable Thread thread, long deadline) {
+        if (thread == null) return true;
+        try {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) { /* ignore */ }
+    }
+
+    /**
+     * Give this message a transaction ID, register the callback for its response, and queue it for sending.
+     * The client ID must already be set.
      * @param msg
+     * @param callback the response callback, or null
      * @throws QmiException
      */
-    private void prepareMessageForSending(Message msg) throws QmiException {
-        if (msg.getServiceCode() != ServiceCode.Control) {
-            msg.setClientId(this.getClientId(msg.getServiceCode()));
+    private void enqueue(final Message msg, @Nullable final MessageCallback callback) throws QmiException {
+        TransactionTracer tracer = mTracer;
+        final TransactionTrace trace = (tracer != null) ? tracer.begin(msg) : null;
+        msg.setTrace(trace);
+
+        MessageCallback timedCallback = null;
+        if (callback != null) {
+            final long startTime = System.nanoTime();
+            timedCallback = new MessageCallback() {
+                @Override
+                public void onReceive(Message responseMsg) {
+                    mRttEstimator.sample(msg.getServiceCode(), msg.getMessageCode(), System.nanoTime() - startTime);
+                    if (trace != null) {
+                        trace.stamp(TransactionTrace.Stage.Read, mFrameReadTime);
+                        trace.stamp(TransactionTrace.Stage.Decoded, mFrameDecodedTime);
+                        trace.stamp(TransactionTrace.Stage.Dispatched);
+                    }
+                    callback.onReceive(responseMsg);
+                    if (trace != null) trace.stamp(TransactionTrace.Stage.CallbackDone);
+                }
+
+                @Override
+                public void onError(QmiException e) {
+                    callback.onError(e);
+                }
+            };
         }
+        assignTxId(msg, timedCallback);
 
-        msg.setTxId(getTxId());
+        if (trace != null) {
+            trace.setTxId(msg.getTxId());
+            trace.stamp(TransactionTrace.Stage.Enqueued);
+        }
+        try {
+            mOutputQueue.put(msg, msg.getPriority());
+        } catch (QmiException e) {
+            if (timedCallback != null) mCallbacks.remove(getCallbackKey(msg));
+            throw e;
+        }
+    }
+
+    private void assignTxId(Message msg, @Nullable MessageCallback callback) throws QmiException {
+        // skip transaction IDs that are still waiting for a response
+        final int maxTxId = TxIdAllocator.maxTxId(msg.getServiceCode());
+        for (int tries = 0; tries < maxTxId; tries++) {
+            msg.setTxId(mTxIds.next(msg.getServiceCode(), msg.getClientId()));
+            int key = getCallbackKey(msg);
+            if (callback != null ? mCallbacks.putIfAbsent(key, callback) == null : !mCallbacks.containsKey(key)) {
+                return;
+            }
+        }
+        throw new QmiException("no free transaction IDs for "+msg.getServiceCode());
     }
 
     /**
@@ -137,12 +599,12 @@ public class Client {
      * @throws QmiException
      */
     public void sendAsync(Message msg, MessageCallback callback) throws QmiException {
-        prepareMessageForSending(msg);
-
-        if (callback != null) {
-            mCallbacks.put(getCallbackKey(msg), callback);
+        // an exception may be thrown if a client ID needs to be allocated, and something goes wrong in that process
+        if (msg.getServiceCode() != ServiceCode.Control) {
+            msg.setClientId(this.getClientId(msg.getServiceCode()));
         }
-        mOutputQueue.add(msg);
+
+        enqueue(msg, callback);
     }
 
     /**
@@ -157,117 +619,304 @@ public class Client {
     /**
      * Synchronously send a message. Wait for the response, or until the timeout (in ms).
      * @param msg
-     * @param timeout timeout in ms
+     * @param timeout timeout in ms, or 0 for infinite
      * @return the response message
      * @throws QmiTimeoutException in case of timeout
      */
     public Message send(Message msg, int timeout) throws QmiException {
-        final AtomicReference<Message> responseMsgHolder = new AtomicReference<>();
-        sendAsync(msg, responseMsg -> {
-            synchronized (responseMsgHolder) {
-                responseMsgHolder.set(responseMsg);
-                responseMsgHolder.notify();
+        // wait without holding a monitor, so virtual threads are not pinned while blocked here
+        final CompletableFuture<Message> responseFuture = sendFuture(msg, 0);
+
+        try {
+            Message responseMsg = (timeout == 0) ? responseFuture.get() : responseFuture.get(timeout, TimeUnit.MILLISECONDS);
+            TransactionTrace trace = msg.getTrace();
+            if (trace != null) trace.stamp(TransactionTrace.Stage.Woken);
+            return responseMsg;
+        } catch (InterruptedException e) {
+            throw new QmiException("interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof QmiException) {
+                throw (QmiException) e.getCause();
             }
-        });
-        synchronized (responseMsgHolder) {
-            if (responseMsgHolder.get() == null) {
+            throw new QmiException("error waiting for response: "+e.getCause());
+        } catch (TimeoutException e) {
+            // nobody is waiting for the response any more
+            mCallbacks.remove(getCallbackKey(msg));
+            mRttEstimator.timedOut(msg.getServiceCode(), msg.getMessageCode());
+            throw new QmiTimeoutException();
+        }
+    }
+
+    /**
+     * Send a message, and get a future for the response. The future fails with a QmiErrorCodeException if the
+     * response reports an error, and with a QmiTimeoutException if there is no response in time.
+     * <p>
+     * The future is completed on the input thread, so actions depending on it must not wait for other responses
+     * (use the *Async methods of CompletableFuture to run them elsewhere).
+     * @param msg
+     * @param timeout timeout in ms, or 0 for infinite
+     * @return the response future
+     * @throws QmiException if the message can't be sent
+     */
+    public CompletableFuture<Message> sendFuture(final Message msg, int timeout) throws QmiException {
+        final CompletableFuture<Message> responseFuture = new CompletableFuture<>();
+        sendAsync(msg, new MessageCallback() {
+            @Override
+            public void onReceive(Message responseMsg) {
                 try {
-                    responseMsgHolder.wait(timeout);
-                } catch (InterruptedException e) {
-                    throw new QmiException("interrupted");
+                    throwQmiExceptionForMessageResult(responseMsg);
+                    responseFuture.complete(responseMsg);
+                } catch (QmiErrorCodeException e) {
+                    if (e.getQmiErrorCode() == QmiErrorCode.InvalidClientID) {
+                        forgetReclaimedClientId(msg.getServiceCode());
+                    }
+                    responseFuture.completeExceptionally(e);
+                } catch (QmiException e) {
+                    responseFuture.completeExceptionally(e);
                 }
             }
-        }
 
-        Message responseMsg = responseMsgHolder.get();
+            @Override
+            public void onError(QmiException e) {
+                responseFuture.completeExceptionally(e);
+            }
+        });
 
-        if (responseMsg == null) {
-            // cancel callback, so input thread doesn't hang when we're ready to stop
-            mCallbacks.remove(getCallbackKey(msg));
-            throw new QmiTimeoutException();
+        if (timeout != 0) {
+            final ScheduledFuture<?> timer = getTimer().schedule(() -> {
+                if (!responseFuture.isDone()) {
+                    // nobody is waiting for the response any more
+                    mCallbacks.remove(getCallbackKey(msg));
+                    mRttEstimator.timedOut(msg.getServiceCode(), msg.getMessageCode());
+                    responseFuture.completeExceptionally(new QmiTimeoutException());
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            responseFuture.whenComplete((responseMsg, e) -> timer.cancel(false));
         }
+        return responseFuture;
+    }
 
-        throwQmiExceptionForMessageResult(responseMsg);
-        return responseMsg;
+    private synchronized ScheduledExecutorService getTimer() {
+        if (mTimer == null) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "QmiTimeouts");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            mTimer = timer;
+        }
+        return mTimer;
     }
 
     /**
-     * Synchronously send a message. Wait for the response.
+     * Synchronously send a message. Wait for the response, or until the adaptive timeout for this kind of message
+     * (see getAdaptiveTimeout()).
      * @param msg
      * @return the response message
+     * @throws QmiTimeoutException in case of timeout
      */
     public Message send(Message msg) throws QmiException {
-        return send(msg, 0);
+        return send(msg, getAdaptiveTimeout(msg.getServiceCode(), msg.getMessageCode()));
     }
 
-    private void debug(String msg) {
+    /**
+     * Get the timeout used for messages sent without one. It is derived from the round-trip times seen for
+     * the same service and message code, and backs off after timeouts.
+     * @param service
+     * @param msgCode
+     * @return the timeout in ms
+     */
+    public int getAdaptiveTimeout(ServiceCode service, int msgCode) {
+        return mRttEstimator.getTimeout(service, msgCode);
+    }
+
+    /**
+     * Get the smoothed round-trip time seen for the service and message code.
+     * @param service
+     * @param msgCode
+     * @return the time in ms, or -1 if nothing has been measured
+     */
+    public double getSmoothedRtt(ServiceCode service, int msgCode) {
+        return mRttEstimator.getSmoothedRtt(service, msgCode);
+    }
+
+    /**
+     * Set the bounds for adaptive timeouts. Commands that can legitimately take much longer than usual for their
+     * kind (e.g. some card commands) need a per-call timeout, or a higher minimum.
+     * @param initialTimeout timeout in ms, before any round trips have been measured
+     * @param minTimeout lower bound in ms
+     * @param maxTimeout upper bound in ms
+     */
+    public void setAdaptiveTimeoutBounds(int initialTimeout, int minTimeout, int maxTimeout) {
+        mRttEstimator.setBounds(initialTimeout, minTimeout, maxTimeout);
+    }
+
+    protected void debug(String msg) {
         if (mDebug != null) mDebug.println(msg);
     }
 
-    private Map<ServiceCode, Short> mClientMap = new HashMap<>();
     /**
      * Get a client ID for the given service, asking the control service for a new one if necessary.
      * @param service
      * @return the client ID
      * @throws QmiException
      */
-    private short getClientId(ServiceCode service) throws QmiException {
-        // TODO racy
-        if (mClientMap.get(service) == null) {
-            Message allocMsg = new Message(ServiceCode.Control, 0x22);
-            allocMsg.addTlvByte(0x01, service.value);
-            Message allocResponse = send(allocMsg);
-            Tlv serviceTlv = allocResponse.getTlv(1);
-            if (serviceTlv == null) {
-                throw new QmiException("unable to find service allocation tlv");
-            }
-            byte[] serviceTlvBytes = serviceTlv.getValue();
-            if (serviceTlvBytes.length != 2) {
-                throw new QmiException("unexpected servicetlv length");
+    public short getClientId(ServiceCode service) throws QmiException {
+        try {
+            return allocateClientId(service).get();
+        } catch (InterruptedException e) {
+            throw new QmiException("interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof QmiException) {
+                throw (QmiException) e.getCause();
             }
-            if (((int) serviceTlvBytes[0] & 0xff) != service.value) {
-                throw new QmiException("got unexpected service");
-            }
-            mClientMap.put(service, (short) (serviceTlvBytes[1] & 0xff));
+            throw new QmiException("error allocating client ID: "+e.getCause());
+        }
+    }
 
-            if (service == ServiceCode.Uim) {
-                registerForUimIndications((byte) 7);
-            }
+    /**
+     * Get the client ID for the given service, or start allocating one. Only one allocation is made per service,
+     * however many callers ask concurrently. If it fails, the next call tries again.
+     * @param service
+     * @return a future for the client ID
+     */
+    private CompletableFuture<Short> allocateClientId(final ServiceCode service) {
+        CompletableFuture<Short> future = mClientIds.get(service);
+        if (future != null) return future;
+
+        final CompletableFuture<Short> newFuture = new CompletableFuture<>();
+        future = mClientIds.putIfAbsent(service, newFuture);
+        if (future != null) return future;
+
+        Message allocMsg = new Message(ServiceCode.Control, 0x22);
+        allocMsg.addTlvByte(0x01, service.value);
+        try {
+            enqueue(allocMsg, new MessageCallback() {
+                @Override
+                public void onReceive(Message allocResponse) {
+                    // this is on the input thread, so nothing here may wait for a response
+                    try {
+                        short clientId = parseClientIdAllocation(service, allocResponse);
+                        recordLease(service, clientId);
+                        if (service == ServiceCode.Uim) {
+                            // queued before anyone can use the client ID, so it's sent ahead of their messages
+                            registerForUimIndications(clientId, (byte) 7);
+                        }
+                        newFuture.complete(clientId);
+                    } catch (QmiException e) {
+                        onError(e);
+                    }
+                }
+
+                @Override
+                public void onError(QmiException e) {
+                    mClientIds.remove(service, newFuture);
+                    newFuture.completeExceptionally(e);
+                }
+            });
+        } catch (QmiException e) {
+            mClientIds.remove(service, newFuture);
+            newFuture.completeExceptionally(e);
         }
 
-        return mClientMap.get(service);
+        return newFuture;
     }
 
     /**
-     * Unregister allocated client IDs with the QMI endpoint.
-     * @return true if any QMI errors occurred while de-allocating
+     * A reclaimed client ID was rejected (e.g. the modem restarted since it was leased), so drop it.
+     * The next message to the service will allocate a new one.
+     * @param service
      */
-    private boolean deallocateClients() {
-        boolean qmiError = false;
+    private void forgetReclaimedClientId(ServiceCode service) {
+        if (mReclaimedServices.remove(service)) {
+            debug("leased client ID for "+service+" is no longer valid");
+            mClientIds.remove(service);
+            removeLease(service);
+        }
+    }
 
-        for (Map.Entry<ServiceCode, Short> clientPair : mClientMap.entrySet()) {
-            Message deallocMsg = new Message(ServiceCode.Control, 0x23);
-            deallocMsg.addTlvBytes(0x01, new byte[] { (byte) clientPair.getKey().value, clientPair.getValue().byteValue() });
+    private short parseClientIdAllocation(ServiceCode service, Message allocResponse) throws QmiException {
+        throwQmiExceptionForMessageResult(allocResponse);
+        Tlv serviceTlv = allocResponse.getTlv(1);
+        if (serviceTlv == null) {
+            throw new QmiException("unable to find service allocation tlv");
+        }
+        byte[] serviceTlvBytes = serviceTlv.getValue();
+        if (serviceTlvBytes.length != 2) {
+            throw new QmiException("unexpected servicetlv length");
+        }
+        if (((int) serviceTlvBytes[0] & 0xff) != service.value) {
+            throw new QmiException("got unexpected service");
+        }
+        return (short) (serviceTlvBytes[1] & 0xff);
+    }
+
+    /**
+     * Unregister allocated client IDs with the QMI endpoint. The requests are all sent before waiting for any
+     * response.
+     * @param deadline System.nanoTime() by which to give up waiting
+     * @return true if all were released
+     */
+    private boolean deallocateClients(long deadline) {
+        boolean released = true;
+
+        Map<ServiceCode, CompletableFuture<Void>> releases = new HashMap<>();
+        for (Map.Entry<ServiceCode, CompletableFuture<Short>> clientPair : mClientIds.entrySet()) {
+            final ServiceCode service = clientPair.getKey();
+            CompletableFuture<Short> clientId = clientPair.getValue();
+            if (!clientId.isDone() || clientId.isCompletedExceptionally()) continue;
+
+            final CompletableFuture<Void> release = new CompletableFuture<>();
             try {
-                send(deallocMsg, 2500);
+                enqueue(makeDeallocMessage(service, clientId.join()), new MessageCallback() {
+                    @Override
+                    public void onReceive(Message response) {
+                        try {
+                            throwQmiExceptionForMessageResult(response);
+                            removeLease(service);
+                            release.complete(null);
+                        } catch (QmiException e) {
+                            onError(e);
+                        }
+                    }
+
+                    @Override
+                    public void onError(QmiException e) {
+                        release.completeExceptionally(e);
+                    }
+                });
+                releases.put(service, release);
             } catch (QmiException e) {
-                debug("error deallocating client "+clientPair.getKey()+": "+e);
-                qmiError = true;
-                // continue
+                debug("error deallocating client "+service+": "+e);
+                released = false;
             }
         }
-        mClientMap.clear();
 
-        return qmiError;
+        for (Map.Entry<ServiceCode, CompletableFuture<Void>> release : releases.entrySet()) {
+            try {
+                release.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                debug("timed out deallocating client "+release.getKey());
+                released = false;
+            } catch (ExecutionException e) {
+                debug("error deallocating client "+release.getKey()+": "+e.getCause());
+                released = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                released = false;
+                break;
+            }
+        }
+        mClientIds.clear();
+
+        return released;
     }
 
-    private static short txId = 1;
-    /**
-     * Get a transaction ID for a message.
-     * @return the ID
-     */
-    private synchronized short getTxId() {
-        return txId++;
+    private static Message makeDeallocMessage(ServiceCode service, short clientId) {
+        Message deallocMsg = new Message(ServiceCode.Control, 0x23);
+        deallocMsg.addTlvBytes(0x01, new byte[] { (byte) service.value, (byte) clientId });
+        return deallocMsg;
     }
 
     /**
@@ -295,22 +944,64 @@ public class Client {
     /**
      * Get an int to use as key for the callback associated with the message.
      * @param msg message
-     * @return the string key
+     * @return the key
      */
     private int getCallbackKey(Message msg) {
-        return msg.getClientId() << 16 | msg.getTxId();
+        return (msg.getServiceCode().value & 0xff) << 24 | (msg.getClientId() & 0xff) << 16 | (msg.getTxId() & 0xffff);
     }
 
-    private void registerForUimIndications(byte mask) throws QmiException {
+    private void registerForUimIndications(short clientId, byte mask) throws QmiException {
         Message msg = new Message(ServiceCode.Uim, 46);
         msg.addTlvBytes(1, new byte[] { mask, 0, 0, 0 });
-        send(msg);
+        msg.setClientId(clientId);
+        enqueue(msg, response -> {
+            try {
+                throwQmiExceptionForMessageResult(response);
+            } catch (QmiException e) {
+                debug("error registering for UIM indications: "+e);
+            }
+        });
     }
 
     /**
      * Register for indications (unsolicited messages). Currently all of them are sent to all handlers.
+     * Handlers are called on the input thread, so they must be quick, and must not wait for responses.
      */
     public void registerForIndications(MessageCallback callback) {
         mIndicationHandlers.add(callback);
     }
+
+    /**
+     * Stop sending indications to a handler.
+     * @param callback
+     */
+    public void unregisterForIndications(MessageCallback callback) {
+        mIndicationHandlers.remove(callback);
+    }
+
+    /**
+     * Publish indications of one kind to subscribers that take them at their own pace, on their own threads.
+     * The publisher is completed when the client is stopped.
+     * @param service
+     * @param messageCode the message code, or -1 for all of the service's indications
+     * @param bufferSize how many indications to buffer for each subscriber
+     * @param overflowPolicy what to do when a subscriber's buffer is full
+     * @return the publisher
+     */
+    public IndicationPublisher publishIndications(ServiceCode service, int messageCode, int bufferSize,
+                                                  IndicationPublisher.OverflowPolicy overflowPolicy) {
+        IndicationPublisher publisher = new IndicationPublisher(this, service, messageCode, bufferSize, overflowPolicy);
+        mPublishers.add(publisher);
+        registerForIndications(publisher);
+        return publisher;
+    }
+
+    /**
+     * Forget a closed publisher.
+     * @param publisher
+     */
+    /* package */ void removePublisher(IndicationPublisher publisher) {
+        mPublishers.remove(publisher);
+        unregisterForIndications(publisher);
+    }
 }
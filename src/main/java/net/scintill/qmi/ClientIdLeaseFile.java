@@ -0,0 +1,119 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A file recording the client IDs allocated on a device, so a later process can reuse or release them.
+ * It is a properties file mapping service name to client ID, e.g. "Uim=3".
+ */
+final class ClientIdLeaseFile {
+    private final File mFile;
+    private final Properties mLeases = new Properties();
+
+    ClientIdLeaseFile(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Read the leases from the file. A missing file has no leases.
+     * @return the client ID for each service
+     * @throws IOException if the file can't be read, or isn't a regular file of ours
+     */
+    synchronized Map<ServiceCode, Short> load() throws IOException {
+        mLeases.clear();
+        if (Files.exists(mFile.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            // someone else's file could hand us client IDs in use by other processes
+            PosixFileAttributes attributes = PrivateFiles.checkOwner(mFile.toPath());
+            if (!attributes.isRegularFile()) {
+                throw new IOException(mFile+" is not a regular file");
+            }
+            try (InputStream is = new FileInputStream(mFile)) {
+                mLeases.load(is);
+            }
+        }
+
+        Map<ServiceCode, Short> leases = new EnumMap<>(ServiceCode.class);
+        for (String name : mLeases.stringPropertyNames()) {
+            try {
+                leases.put(ServiceCode.valueOf(name), Short.valueOf(mLeases.getProperty(name)));
+            } catch (IllegalArgumentException e) {
+                // ignore entries we can't understand
+            }
+        }
+        return leases;
+    }
+
+    synchronized void put(ServiceCode service, short clientId) throws IOException {
+        mLeases.setProperty(service.name(), Short.toString(clientId));
+        save();
+    }
+
+    synchronized void remove(ServiceCode service) throws IOException {
+        if (mLeases.remove(service.name()) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Remove a lease only if it is still for the given client ID, so releasing an old client ID can't drop the lease
+     * of a newer one.
+     * @param service
+     * @param clientId
+     * @throws IOException
+     */
+    synchronized void remove(ServiceCode service, short clientId) throws IOException {
+        if (mLeases.remove(service.name(), Short.toString(clientId))) {
+            save();
+        }
+    }
+
+    /**
+     * Write the file, replacing the old one atomically so a crash never leaves it half-written.
+     * The new contents go to a freshly created, owner-only temporary file, so nothing planted beside the lease
+     * file (such as a symbolic link) gets written through.
+     * @throws IOException
+     */
+    private void save() throws IOException {
+        Path file = mFile.getAbsoluteFile().toPath();
+        Path tmpFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp",
+                PosixFilePermissions.asFileAttribute(PrivateFiles.OWNER_ONLY_FILE));
+        try {
+            try (OutputStream os = Files.newOutputStream(tmpFile)) {
+                mLeases.store(os, "qmismartcard client ID leases");
+            }
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpFile);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds QMI devices through sysfs: cdc-wdm character devices whose USB interface is bound to the qmi_wwan driver.
+ */
+public final class DeviceDiscovery {
+
+    // newer kernels put cdc-wdm under usbmisc, older ones under usb
+    private static final String[] SYSFS_CLASS_DIRS = { "/sys/class/usbmisc", "/sys/class/usb" };
+    private static final String QMI_DRIVER = "qmi_wwan";
+
+    private DeviceDiscovery() {
+    }
+
+    /**
+     * List the QMI devices present, in device number order. A cdc-wdm device whose driver can't be determined
+     * is included; one bound to another driver (e.g. cdc_mbim) is not.
+     * @return device paths, e.g. "/dev/cdc-wdm0"
+     */
+    public static List<String> findQmiDevices() {
+        List<String> names = new ArrayList<>();
+        for (String classDir : SYSFS_CLASS_DIRS) {
+            Path dir = Paths.get(classDir);
+            if (!Files.isDirectory(dir)) continue;
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "cdc-wdm*")) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (!names.contains(name) && isQmiDriver(entry)) {
+                        names.add(name);
+                    }
+                }
+            } catch (IOException e) {
+                // try the next place
+            }
+        }
+
+        names.sort(Comparator.comparingInt(DeviceDiscovery::deviceNumber));
+        List<String> paths = new ArrayList<>(names.size());
+        for (String name : names) {
+            paths.add("/dev/"+name);
+        }
+        return paths;
+    }
+
+    /**
+     * Get the first QMI device present.
+     * @param fallback the path to use if none is found
+     * @return the device path
+     */
+    public static String findQmiDevice(String fallback) {
+        List<String> devices = findQmiDevices();
+        return devices.isEmpty() ? fallback : devices.get(0);
+    }
+
+    private static boolean isQmiDriver(Path sysfsEntry) {
+        Path driver = sysfsEntry.resolve("device").resolve("driver");
+        try {
+            return QMI_DRIVER.equals(Files.readSymbolicLink(driver).getFileName().toString());
+        } catch (IOException | UnsupportedOperationException e) {
+            return true;
+        }
+    }
+
+    private static int deviceNumber(String name) {
+        try {
+            return Integer.parseInt(name.substring("cdc-wdm".length()));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+/**
+ * Identification of the modem, from the device management service.
+ */
+public class DeviceInfo {
+
+    // message codes
+    private static final int DMS_GET_MANUFACTURER = 0x21;
+    private static final int DMS_GET_MODEL = 0x22;
+    private static final int DMS_GET_REVISION = 0x23;
+
+    private final String manufacturer;
+    private final String model;
+    private final String revision;
+
+    public DeviceInfo(String manufacturer, String model, String revision) {
+        this.manufacturer = manufacturer;
+        this.model = model;
+        this.revision = revision;
+    }
+
+    /**
+     * Ask the modem for its identification.
+     * @param qmiClient
+     * @return the device info
+     * @throws QmiException
+     */
+    public static DeviceInfo query(Client qmiClient) throws QmiException {
+        return new DeviceInfo(
+                queryString(qmiClient, DMS_GET_MANUFACTURER),
+                queryString(qmiClient, DMS_GET_MODEL),
+                queryString(qmiClient, DMS_GET_REVISION));
+    }
+
+    private static String queryString(Client qmiClient, int msgCode) throws QmiException {
+        Message msg = new Message(ServiceCode.Dms, msgCode);
+        msg.setPriority(Message.Priority.Management);
+        Tlv tlv = qmiClient.send(msg).getTlv(0x01);
+        if (tlv == null) {
+            throw new QmiException("DMS string TLV not returned");
+        }
+        return tlv.getValueString();
+    }
+
+    public String getManufacturer() {
+        return manufacturer;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * @return the firmware revision
+     */
+    public String getRevision() {
+        return revision;
+    }
+
+    @Override
+    public String toString() {
+        return manufacturer+" "+model+" ("+revision+")";
+    }
+}
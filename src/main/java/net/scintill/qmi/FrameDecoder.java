@@ -0,0 +1,163 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads QMUX serial frames from a stream, and decodes them to messages. Works both on devices that return
+ * one frame per read (cdc-wdm) and on streams without message boundaries (sockets).
+ * <p>
+ * A frame that fails to decode does not end the stream: it is counted, and bytes are skipped until the
+ * next position that looks like a valid QMUX header.
+ */
+final class FrameDecoder {
+    // qmux header (length, flags, service, client) + control header (flags, txid, message, tlv length)
+    private static final int CONTROL_HEADER_LENGTH = 1+5+4+2;
+    // ... with a 2-byte transaction ID
+    private static final int SERVICE_HEADER_LENGTH = 1+5+5+2;
+    private static final int READ_SIZE = 2048; // libqmi reads into a 2k buffer
+
+    private final InputStream mIn;
+    private final boolean mFromService;
+    private final AtomicLong mMalformedFrames;
+    private final AtomicLong mSkippedBytes;
+
+    private byte[] mBuf = new byte[2 * READ_SIZE];
+    private int mStart = 0;
+    private int mEnd = 0;
+    private boolean mResyncing = false;
+    private long mFillTime; // when the last bytes came in
+    private long mFrameReadTime;
+
+    /**
+     * @param in the stream to read
+     * @param fromService true if messages are expected to come from a service, false if they are expected to be sent to one
+     * @param malformedFrames counter of frames that failed to decode
+     * @param skippedBytes counter of bytes skipped while resynchronizing
+     */
+    FrameDecoder(InputStream in, boolean fromService, AtomicLong malformedFrames, AtomicLong skippedBytes) {
+        mIn = in;
+        mFromService = fromService;
+        mMalformedFrames = malformedFrames;
+        mSkippedBytes = skippedBytes;
+    }
+
+    InputStream getInput() {
+        return mIn;
+    }
+
+    /**
+     * @return when the last byte of the message last returned by next() was read, in System.nanoTime() terms
+     */
+    long getFrameReadTime() {
+        return mFrameReadTime;
+    }
+
+    /**
+     * Read the next message (may block).
+     * @return the message
+     * @throws IOException if reading fails, or at EOF
+     */
+    Message next() throws IOException {
+        for (;;) {
+            int available = mEnd - mStart;
+            if (available >= 1) {
+                int frameLength = checkHeader(available);
+                if (frameLength < 0) {
+                    skipByte();
+                    continue;
+                }
+                if (frameLength > 0 && available >= frameLength) {
+                    try {
+                        mFrameReadTime = mFillTime;
+                        Message msg = Message.decode(mBuf, mStart, frameLength, mFromService);
+                        mStart += frameLength;
+                        mResyncing = false;
+                        return msg;
+                    } catch (IOException e) {
+                        skipByte();
+                        continue;
+                    }
+                }
+            }
+
+            fill();
+        }
+    }
+
+    /**
+     * Check as much of the frame header at mStart as is available.
+     * @param available the number of bytes available
+     * @return -1 if the header is invalid, 0 if more bytes are needed to tell, else the frame length
+     */
+    private int checkHeader(int available) {
+        if (mBuf[mStart] != 1) return -1;
+        if (available < 3) return 0;
+
+        int length = u16(mStart + 1);
+        if (length < CONTROL_HEADER_LENGTH - 1) return -1;
+        if (available < 4) return 0;
+        if ((mBuf[mStart + 3] & 0xff) != (mFromService ? Message.QMUX_FLAG_FROM_SERVICE : 0)) return -1;
+        if (available < 5) return 0;
+
+        boolean isControl = (mBuf[mStart + 4] == (byte) ServiceCode.Control.value);
+        int headerLength = isControl ? CONTROL_HEADER_LENGTH : SERVICE_HEADER_LENGTH;
+        if (available < headerLength) return 0;
+        // the frame length must agree with the TLV length, before we believe it enough to wait for that many bytes
+        if (length != headerLength - 1 + u16(mStart + headerLength - 2)) return -1;
+
+        return 1 + length;
+    }
+
+    private int u16(int offset) {
+        return (mBuf[offset] & 0xff) | (mBuf[offset + 1] & 0xff) << 8;
+    }
+
+    private void skipByte() {
+        if (!mResyncing) {
+            mResyncing = true;
+            mMalformedFrames.incrementAndGet();
+        }
+        mSkippedBytes.incrementAndGet();
+        mStart++;
+    }
+
+    private void fill() throws IOException {
+        if (mStart == mEnd) {
+            mStart = mEnd = 0;
+        }
+        if (mBuf.length - mEnd < READ_SIZE) {
+            // make room: compact, and grow if a big frame needs it
+            int available = mEnd - mStart;
+            byte[] buf = (available + READ_SIZE > mBuf.length) ? new byte[available + READ_SIZE] : mBuf;
+            System.arraycopy(mBuf, mStart, buf, 0, available);
+            mBuf = buf;
+            mStart = 0;
+            mEnd = available;
+        }
+
+        int n = mIn.read(mBuf, mEnd, mBuf.length - mEnd);
+        if (n < 0) {
+            throw new IOException("EOF when reading");
+        }
+        mEnd += n;
+        mFillTime = System.nanoTime();
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A stream of indications of one kind, for consumers that want to take them at their own pace rather than on
+ * the input thread. Each subscriber gets its own bounded buffer and delivery thread, and says how many
+ * indications it is ready for; the overflow policy decides what happens when it falls behind.
+ * <p>
+ * Subscriber and Subscription have the same methods as java.util.concurrent.Flow's (which is not available on
+ * Java 8), so a Flow.Subscriber is adapted by delegating each method.
+ * <p>
+ * Get one with Client.publishIndications().
+ */
+public class IndicationPublisher implements MessageCallback {
+
+    /**
+     * Receives indications. See java.util.concurrent.Flow.Subscriber.
+     */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+        void onNext(T item);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    /**
+     * A subscriber's link to the publisher. See java.util.concurrent.Flow.Subscription.
+     */
+    public interface Subscription {
+        /**
+         * Ask for up to n more indications.
+         * @param n a positive number
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving indications. Some may still be delivered after this.
+         */
+        void cancel();
+    }
+
+    /**
+     * What to do with an indication for a subscriber whose buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard the oldest buffered indication to make room. */
+        DropOldest,
+        /** Keep only the latest indication; the buffer size is ignored. Suits indications that report a state. */
+        LatestOnly,
+        /**
+         * Wait for room. This holds up the input thread, and so responses to all messages, until the subscriber
+         * catches up; only for subscribers that must not miss anything and keep up on average.
+         */
+        Block,
+    }
+
+    private final Client qmiClient;
+    private final ServiceCode service;
+    private final int messageCode;
+    private final int bufferSize;
+    private final OverflowPolicy overflowPolicy;
+    private final List<IndicationSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /* package */ IndicationPublisher(Client qmiClient, ServiceCode service, int messageCode, int bufferSize,
+                                      OverflowPolicy overflowPolicy) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("buffer size must be positive");
+        this.qmiClient = qmiClient;
+        this.service = service;
+        this.messageCode = messageCode;
+        this.bufferSize = (overflowPolicy == OverflowPolicy.LatestOnly) ? 1 : bufferSize;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Add a subscriber. Its onSubscribe() is called on its delivery thread, followed by indications as it
+     * requests them.
+     * @param subscriber
+     */
+    public void subscribe(Subscriber<? super Message> subscriber) {
+        IndicationSubscription subscription = new IndicationSubscription(subscriber);
+        if (closed) {
+            subscription.complete();
+        } else {
+            subscriptions.add(subscription);
+        }
+        qmiClient.startThread("QmiIndications", subscription::deliver);
+    }
+
+    /**
+     * Stop publishing. Subscribers get onComplete() once they have been given what is already buffered.
+     */
+    public void close() {
+        closed = true;
+        qmiClient.removePublisher(this);
+        for (IndicationSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * @return the number of indications discarded because a subscriber's buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public void onReceive(Message msg) {
+        if (msg.getServiceCode() != service || (messageCode >= 0 && msg.getMessageCode() != messageCode)) {
+            return;
+        }
+        for (IndicationSubscription subscription : subscriptions) {
+            subscription.offer(msg);
+        }
+    }
+
+    private class IndicationSubscription implements Subscription {
+        private final Subscriber<? super Message> subscriber;
+        private final ArrayDeque<Message> buffer = new ArrayDeque<>();
+        private long demand = 0;
+        private boolean cancelled = false;
+        private boolean completed = false;
+        // set along with cancelled, to be given to the subscriber on its delivery thread
+        private Throwable error;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+
+        IndicationSubscription(Subscriber<? super Message> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Buffer an indication. Called on the input thread.
+         */
+        void offer(Message msg) {
+            lock.lock();
+            try {
+                if (cancelled || completed) return;
+                if (buffer.size() >= bufferSize) {
+                    if (overflowPolicy == OverflowPolicy.Block) {
+                        while (buffer.size() >= bufferSize && !cancelled && !completed) {
+                            notFull.await();
+                        }
+                        if (cancelled || completed) return;
+                    } else {
+                        buffer.poll();
+                        droppedCount.incrementAndGet();
+                    }
+                }
+                buffer.add(msg);
+                changed.signal();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                droppedCount.incrementAndGet();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // as the reactive streams rules say; onError goes on the delivery thread, as it may be in onNext()
+                fail(new IllegalArgumentException("non-positive request: "+n));
+                return;
+            }
+            lock.lock();
+            try {
+                demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n; // effectively unbounded
+                changed.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            subscriptions.remove(this);
+            lock.lock();
+            try {
+                cancelled = true;
+                buffer.clear();
+                changed.signal();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Cancel, and have the delivery thread give the subscriber an error.
+         */
+        private void fail(Throwable throwable) {
+            subscriptions.remove(this);
+            lock.lock();
+            try {
+                if (cancelled) return;
+                cancelled = true;
+                error = throwable;
+                buffer.clear();
+                changed.signal();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void complete() {
+            lock.lock();
+            try {
+                completed = true;
+                changed.signal();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Hand buffered indications to the subscriber as it asks for them. Runs on the delivery thread.
+         */
+        void deliver() {
+            subscriber.onSubscribe(this);
+            for (;;) {
+                Message msg;
+                Throwable failure;
+                boolean stopped;
+                lock.lock();
+                try {
+                    while (!cancelled && (buffer.isEmpty() ? !completed : demand == 0)) {
+                        changed.await();
+                    }
+                    stopped = cancelled;
+                    if (cancelled) {
+                        failure = error;
+                        error = null;
+                        msg = null;
+                    } else {
+                        failure = null;
+                        msg = buffer.poll();
+                        if (msg != null) {
+                            if (demand != Long.MAX_VALUE) demand--;
+                            notFull.signal();
+                        } else {
+                            subscriptions.remove(this);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+
+                if (msg == null) {
+                    // cancelled (perhaps by a bad request), or completed and drained
+                    if (failure != null) {
+                        subscriber.onError(failure);
+                    } else if (!stopped) {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                try {
+                    subscriber.onNext(msg);
+                } catch (RuntimeException e) {
+                    cancel();
+                    subscriber.onError(e);
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -16,16 +16,44 @@
 
 package net.scintill.qmi;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A QMI client over a Linux file (probably cdc-wdm).
  */
 public class LinuxFileClient extends Client {
 
+    private static final long REOPEN_INTERVAL_MS = 100;
+    private static final long DEVICE_POLL_MS = 1000;
+
+    private final String mPath;
+    private volatile InputStream mInputStream;
+    private volatile OutputStream mOutputStream;
+
+    private volatile boolean mRecoveryEnabled = false;
+    private WatchService mWatchService;
+    private final ReentrantLock mDeviceLock = new ReentrantLock();
+    private final Condition mDeviceChanged = mDeviceLock.newCondition();
+
     /**
      * Construct a QMI client over a Linux file (probably cdc-wdm).
      * @param path path to the file
@@ -33,7 +61,154 @@ public class LinuxFileClient extends Client {
      * @throws IOException
      */
     public LinuxFileClient(String path, PrintStream debug) throws IOException {
-        super(new FileInputStream(path), new FileOutputStream(path), debug);
+        this(path, openInput(path), debug);
+    }
+
+    private LinuxFileClient(String path, InputStream in, PrintStream debug) throws IOException {
+        this(path, in, openOutput(path), debug);
+    }
+
+    private LinuxFileClient(String path, InputStream in, OutputStream out, PrintStream debug) throws IOException {
+        super(in, out, debug);
+        mPath = path;
+        mInputStream = in;
+        mOutputStream = out;
+    }
+
+    // through channels rather than FileInputStream/FileOutputStream, so closing them wakes up a blocked read
+
+    private static InputStream openInput(String path) throws IOException {
+        return Channels.newInputStream(FileChannel.open(Paths.get(path), StandardOpenOption.READ));
+    }
+
+    private static OutputStream openOutput(String path) throws IOException {
+        return Channels.newOutputStream(FileChannel.open(Paths.get(path), StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Record client IDs in a lease file for this device, in this user's private directory ($XDG_RUNTIME_DIR, or
+     * the temporary directory). See Client.setClientIdLeaseFile().
+     * @param reclaim true to reuse leased client IDs, false to release them
+     * @throws IOException if the private directory can't be made, or isn't ours
+     */
+    public void useClientIdLeaseFile(boolean reclaim) throws IOException {
+        File leaseFile = PrivateFiles.directory().resolve(new File(mPath).getName()+".leases").toFile();
+        setClientIdLeaseFile(leaseFile, reclaim);
+    }
+
+    /**
+     * Recover from losing the device (e.g. a USB replug): watch for the device file to be removed and come back,
+     * then reopen it. Outstanding transactions are failed, and client IDs and indication registrations are redone.
+     * @throws IOException if the device directory can't be watched
+     */
+    public void enableRecovery() throws IOException {
+        if (mRecoveryEnabled) return;
+
+        final File file = new File(mPath).getAbsoluteFile();
+        final WatchService watchService = FileSystems.getDefault().newWatchService();
+        file.getParentFile().toPath().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        mWatchService = watchService;
+        mRecoveryEnabled = true;
+
+        Thread thread = new Thread(() -> {
+            Path name = file.toPath().getFileName();
+            try {
+                for (;;) {
+                    WatchKey key = watchService.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (name.equals(event.context())) {
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                                onDeviceRemoved();
+                            } else {
+                                signalDeviceChanged();
+                            }
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // stop watching
+            }
+        }, "DeviceWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void onDeviceRemoved() {
+        debug("device "+mPath+" removed");
+        // a real device fails reads once it's gone; a FIFO stand-in only gives EOF when all writers,
+        // including ours, have closed it
+        closeQuietly(mOutputStream);
+        signalDeviceChanged();
+    }
+
+    private void signalDeviceChanged() {
+        mDeviceLock.lock();
+        try {
+            mDeviceChanged.signalAll();
+        } finally {
+            mDeviceLock.unlock();
+        }
+    }
+
+    @Override
+    protected boolean recoverInput(IOException e) {
+        if (!mRecoveryEnabled) return false;
+
+        closeQuietly(mInputStream);
+        closeQuietly(mOutputStream);
+
+        debug("waiting for device "+mPath);
+        File file = new File(mPath);
+        for (;;) {
+            if (isStopping()) return false;
+            mDeviceLock.lock();
+            try {
+                // the watcher wakes us as soon as it appears; polling is just a fallback
+                mDeviceChanged.await(file.exists() ? REOPEN_INTERVAL_MS : DEVICE_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                return false;
+            } finally {
+                mDeviceLock.unlock();
+            }
+
+            if (!file.exists()) continue;
+            try {
+                // same order as the constructor
+                InputStream in = openInput(mPath);
+                OutputStream out;
+                try {
+                    out = openOutput(mPath);
+                } catch (IOException openException) {
+                    closeQuietly(in);
+                    throw openException;
+                }
+                mInputStream = in;
+                mOutputStream = out;
+                setStreams(in, out);
+                return true;
+            } catch (IOException openException) {
+                // e.g. permissions not set up yet; try again shortly
+                debug("error reopening device: "+openException);
+            }
+        }
+    }
+
+    @Override
+    protected void closeStreams() {
+        super.closeStreams();
+        if (mWatchService != null) {
+            closeQuietly(mWatchService);
+        }
+        // in case the input thread is waiting for the device to come back
+        signalDeviceChanged();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) { /* ignore */ }
     }
 
 }
@@ -19,6 +19,7 @@ package net.scintill.qmi;
 import com.google.common.io.LittleEndianDataInputStream;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,8 +38,23 @@ public class Message {
     private int mClient;
     private int mFlags;
     private int mTxId;
+    private Priority mPriority;
+    private TransactionTrace mTrace; // set when sending, if tracing
     private final Map<Integer, Tlv> mTlvs = new HashMap<>();
 
+    /**
+     * Priority classes for sending. Messages of a higher class are sent ahead of queued messages of
+     * a lower class.
+     */
+    public enum Priority {
+        /** Control service messages (client ID allocation and release). */
+        Control,
+        /** Card and session management, e.g. SAP connect/disconnect and status queries. */
+        Management,
+        /** Bulk traffic, e.g. APDUs. */
+        Bulk,
+    }
+
     public Message() {
         reset();
     }
@@ -57,6 +73,7 @@ public class Message {
         mTxId = -1;
         mService = ServiceCode._Unknown;
         mMessage = -1;
+        mPriority = null;
     }
 
     /**
@@ -100,36 +117,62 @@ public class Message {
      * @throws IOException
      */
     public void writeToOutput(OutputStream os) throws IOException {
+        writeToOutput(os, false);
+    }
+
+    /**
+     * Write this message to the output stream.
+     * @param os
+     * @param fromService true to write it as coming from the service (a response or indication), rather than to it
+     * @throws IOException
+     */
+    public void writeToOutput(OutputStream os, boolean fromService) throws IOException {
         /*
          * See also https://github.com/scintill/qmiserial2qmuxd/blob/d362b032ac8aaf8831afea840a07628acfe9b01f/qmiserial2qmuxd.c#L57
          * for structs, or GobiAPI, Linux kernel, libqmi, etc.
          */
         final boolean isControl = (mService == ServiceCode.Control);
-        final int tlvSize = Tlv.getSize(mTlvs.values());
 
-        ByteBuffer bb = ByteBuffer.allocate(1+5+(isControl ? 4 : 5)+2+tlvSize);
+        ByteBuffer bb = ByteBuffer.allocate(1+5+getSduSize());
         bb.order(ByteOrder.LITTLE_ENDIAN);
 
         bb.put((byte)1); // serial frame
         // qmux header
         bb.putShort((short)(bb.limit()-1)); // length
-        bb.put((byte)0); // flags
+        bb.put(fromService ? (byte) QMUX_FLAG_FROM_SERVICE : 0); // flags
         bb.put((byte)mService.value); // service
         bb.put(isControl ? 0 : (byte) mClient); // client
-        // control/service header
-        bb.put((byte)0); // flags
-        if (isControl) {
+        writeSdu(bb, fromService);
+
+        // write out
+        os.write(bb.array());
+    }
+
+    /**
+     * Get the size of the control/service header and TLVs (the part after the qmux header).
+     * @return the size
+     */
+    /* package */ int getSduSize() {
+        return (mService == ServiceCode.Control ? 4 : 5)+2+Tlv.getSize(mTlvs.values());
+    }
+
+    /**
+     * Write the control/service header and TLVs.
+     * @param bb a little-endian buffer with at least getSduSize() bytes remaining
+     * @param fromService true to write it as coming from the service (a response or indication), rather than to it
+     * @throws IOException
+     */
+    /* package */ void writeSdu(ByteBuffer bb, boolean fromService) throws IOException {
+        bb.put(fromService ? (byte) mFlags : 0); // flags
+        if (mService == ServiceCode.Control) {
             bb.put((byte)mTxId);
         } else {
             bb.putShort((short)mTxId);
         }
         bb.putShort((short)mMessage);
         // tlv
-        bb.putShort((short)tlvSize);
+        bb.putShort(Tlv.getSize(mTlvs.values()));
         Tlv.writeToByteBuffer(mTlvs.values(), bb);
-
-        // write out
-        os.write(bb.array());
     }
 
     /**
@@ -145,7 +188,20 @@ public class Message {
             throw new IOException("EOF when reading");
         }
 
-        LittleEndianDataInputStream di = new LittleEndianDataInputStream(new ByteArrayInputStream(buf, 0, length));
+        return decode(buf, 0, length, true);
+    }
+
+    /**
+     * Decode a message from a buffer holding exactly one serial frame.
+     * @param buf
+     * @param offset the start of the frame
+     * @param length the length of the frame
+     * @param fromService true if the message is expected to come from a service, false if it is expected to be sent to one
+     * @return the message
+     * @throws IOException if the frame is malformed
+     */
+    /* package */ static Message decode(byte[] buf, int offset, int length, boolean fromService) throws IOException {
+        LittleEndianDataInputStream di = new LittleEndianDataInputStream(new ByteArrayInputStream(buf, offset, length));
 
         int b = di.readUnsignedByte();
         if (b != 1) {
@@ -159,13 +215,33 @@ public class Message {
         }
 
         b = di.readUnsignedByte();
-        if (b != 0x80) {
+        if (b != (fromService ? QMUX_FLAG_FROM_SERVICE : 0)) {
             throw new IOException("unexpected qmux flag value: "+b);
         }
 
+        ServiceCode service = ServiceCode.fromValue(di.readUnsignedByte());
+        int client = di.readUnsignedByte();
+        Message msg = decodeSdu(service, client, di);
+
+        if (di.available() != 0) {
+            throw new IOException("did not parse entire message. "+di.available()+" bytes remaining");
+        }
+
+        return msg;
+    }
+
+    /**
+     * Decode the control/service header and TLVs of a message (the part after the qmux header).
+     * @param service the service the message is from/to
+     * @param client the client ID the message is from/to
+     * @param di the input, positioned at the start of the header
+     * @return the message
+     * @throws IOException
+     */
+    /* package */ static Message decodeSdu(ServiceCode service, int client, DataInput di) throws IOException {
         Message msg = new Message();
-        msg.mService = ServiceCode.fromValue(di.readUnsignedByte());
-        msg.mClient = di.readUnsignedByte();
+        msg.mService = service;
+        msg.mClient = client;
         msg.mFlags = di.readUnsignedByte();
         if (msg.mService == ServiceCode.Control) {
             msg.mTxId = di.readUnsignedByte();
@@ -177,10 +253,6 @@ public class Message {
         int tlvLength = di.readUnsignedShort();
         Tlv.readFromInput(msg.mTlvs, tlvLength, di);
 
-        if (di.available() != 0) {
-            throw new IOException("did not parse entire message. "+di.available()+" bytes remaining");
-        }
-
         return msg;
     }
 
@@ -221,9 +293,36 @@ public class Message {
         return mClient;
     }
 
+    /**
+     * Set the priority class for sending this message.
+     * @param priority
+     */
+    public void setPriority(Priority priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * Get the priority class for sending this message. If none was set, Control service messages
+     * are Control, and everything else is Management.
+     * @return the priority
+     */
+    public Priority getPriority() {
+        if (mPriority != null) return mPriority;
+        return (mService == ServiceCode.Control) ? Priority.Control : Priority.Management;
+    }
+
     public int getFlags() { return mFlags; }
 
+    /* package */ TransactionTrace getTrace() { return mTrace; }
+
+    /* package */ void setTrace(TransactionTrace trace) { mTrace = trace; }
+
+    /* package */ void setFlags(int flags) { mFlags = flags; }
+
     public int getMessageCode() { return mMessage; }
 
+    static final int FLAG_RESPONSE = 2;
     static final int FLAG_INDICATION = 4;
+    static final int CONTROL_FLAG_RESPONSE = 1; // the control service header uses different flag values
+    static final int QMUX_FLAG_FROM_SERVICE = 0x80;
 }
@@ -18,4 +18,10 @@ package net.scintill.qmi;
 
 public interface MessageCallback {
     void onReceive(Message msg);
+
+    /**
+     * Called instead of onReceive() if the transaction fails without a response, e.g. because the device was lost.
+     * @param e the failure
+     */
+    default void onError(QmiException e) {}
 }
@@ -0,0 +1,108 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, preallocated multi-producer single-consumer ring of messages. Any thread may offer(),
+ * but only one thread may poll(). Neither operation allocates or takes a lock.
+ * (This is Dmitry Vyukov's bounded queue, with the consumer side simplified for a single consumer.)
+ */
+final class MessageRing {
+    private final Message[] mSlots;
+    // the sequence of each slot says whose turn it is: pos when free for the producer claiming pos,
+    // pos+1 when filled and ready for the consumer
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile long mHead;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    MessageRing(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("invalid capacity "+capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+
+        mSlots = new Message[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Add a message, if there is room.
+     * @param msg
+     * @return false if the ring is full
+     */
+    boolean offer(Message msg) {
+        long pos = mTail.get();
+        for (;;) {
+            int index = (int) pos & mMask;
+            long diff = mSequences.get(index) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    mSlots[index] = msg;
+                    mSequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = mTail.get();
+            } else if (diff < 0) {
+                return false; // full
+            } else {
+                pos = mTail.get(); // another producer got this slot
+            }
+        }
+    }
+
+    /**
+     * Remove the next message. Only to be called from the consumer thread.
+     * @return the message, or null if the ring is empty
+     */
+    Message poll() {
+        long head = mHead;
+        int index = (int) head & mMask;
+        if (mSequences.get(index) != head + 1) {
+            return null; // empty, or the producer has not finished writing
+        }
+
+        Message msg = mSlots[index];
+        mSlots[index] = null;
+        mSequences.set(index, head + mSlots.length);
+        mHead = head + 1;
+        return msg;
+    }
+
+    /**
+     * @return the approximate number of messages in the ring
+     */
+    int size() {
+        long size = mTail.get() - mHead;
+        return (int) Math.max(0, Math.min(size, mSlots.length));
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+}
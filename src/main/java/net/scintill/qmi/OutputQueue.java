@@ -0,0 +1,239 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of messages waiting for the output thread. There is one lane per Message.Priority;
+ * higher lanes are served first, but a waiting lane is never passed over more than FAIRNESS_LIMIT
+ * times in a row, so bulk traffic does not starve.
+ * Producers are blocked when their lane is full, and the consumer waits according to a WaitStrategy
+ * when all lanes are empty.
+ */
+final class OutputQueue {
+    private static final int SPIN_TRIES = 1000;
+    private static final int FAIRNESS_LIMIT = 8;
+
+    private final MessageRing[] mLanes;
+    private final WaitStrategy mWaitStrategy;
+    // only touched by the consumer thread, except that the counts are read for metrics
+    private final int[] mPassedOver;
+    private final long[] mTakenCounts;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private volatile boolean mConsumerWaiting = false;
+    private volatile Thread mConsumer;
+    private final AtomicInteger mProducersWaiting = new AtomicInteger();
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param capacity capacity of each lane
+     * @param waitStrategy
+     */
+    OutputQueue(int capacity, WaitStrategy waitStrategy) {
+        int laneCount = Message.Priority.values().length;
+        mLanes = new MessageRing[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            mLanes[i] = new MessageRing(capacity);
+        }
+        mPassedOver = new int[laneCount];
+        mTakenCounts = new long[laneCount];
+        mWaitStrategy = waitStrategy;
+    }
+
+    /**
+     * Add a message, blocking while its lane is full.
+     * @param msg
+     * @param priority the lane to add it to
+     * @throws QmiException if interrupted, or if the queue has been closed
+     */
+    void put(Message msg, Message.Priority priority) throws QmiException {
+        if (mClosed) throw new QmiException("client stopped");
+
+        MessageRing lane = mLanes[priority.ordinal()];
+        if (!lane.offer(msg)) {
+            mProducersWaiting.incrementAndGet();
+            mLock.lock();
+            try {
+                while (!lane.offer(msg)) {
+                    if (mClosed) throw new QmiException("client stopped");
+                    // timed, in case the consumer's signal raced with our increment
+                    mNotFull.await(1, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                throw new QmiException("interrupted");
+            } finally {
+                mLock.unlock();
+                mProducersWaiting.decrementAndGet();
+            }
+        }
+
+        if (mConsumerWaiting) {
+            wakeConsumer();
+        }
+    }
+
+    /**
+     * Take the next message, waiting until one is available. Only to be called from the consumer thread.
+     * @return the message, or null if the queue was closed and all remaining messages have been taken
+     * @throws InterruptedException
+     */
+    Message take() throws InterruptedException {
+        Message msg = poll();
+        if (msg != null) return msg;
+
+        if (mWaitStrategy == WaitStrategy.SpinThenPark) {
+            for (int i = 0; i < SPIN_TRIES; i++) {
+                msg = poll();
+                if (msg != null) return msg;
+            }
+        }
+
+        mConsumer = Thread.currentThread();
+        for (;;) {
+            mConsumerWaiting = true;
+            try {
+                // check again after announcing that we're waiting, so a producer can't slip in between
+                msg = poll();
+                if (msg != null || mClosed) {
+                    return (msg != null) ? msg : poll();
+                }
+
+                if (mWaitStrategy == WaitStrategy.Block) {
+                    mLock.lock();
+                    try {
+                        if (size() == 0 && !mClosed) {
+                            mNotEmpty.await();
+                        }
+                    } finally {
+                        mLock.unlock();
+                    }
+                } else {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) throw new InterruptedException();
+                }
+            } finally {
+                mConsumerWaiting = false;
+            }
+        }
+    }
+
+    private Message poll() {
+        Message msg = pollLanes();
+        if (msg != null && mProducersWaiting.get() != 0) {
+            mLock.lock();
+            try {
+                mNotFull.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+        return msg;
+    }
+
+    private Message pollLanes() {
+        // first serve any lane that has been passed over too often
+        for (int i = mLanes.length - 1; i > 0; i--) {
+            if (mPassedOver[i] >= FAIRNESS_LIMIT) {
+                Message msg = pollLane(i);
+                if (msg != null) return msg;
+            }
+        }
+
+        for (int i = 0; i < mLanes.length; i++) {
+            Message msg = pollLane(i);
+            if (msg != null) return msg;
+        }
+        return null;
+    }
+
+    private Message pollLane(int index) {
+        Message msg = mLanes[index].poll();
+        if (msg != null) {
+            mPassedOver[index] = 0;
+            mTakenCounts[index]++;
+            // every waiting lower-priority lane was passed over
+            for (int i = index + 1; i < mLanes.length; i++) {
+                if (mLanes[i].size() != 0) mPassedOver[i]++;
+            }
+        }
+        return msg;
+    }
+
+    private void wakeConsumer() {
+        if (mWaitStrategy == WaitStrategy.Block) {
+            mLock.lock();
+            try {
+                mNotEmpty.signal();
+            } finally {
+                mLock.unlock();
+            }
+        } else {
+            Thread consumer = mConsumer;
+            if (consumer != null) LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Stop accepting messages. The consumer will still be given the messages already queued.
+     */
+    void close() {
+        mClosed = true;
+        wakeConsumer();
+        mLock.lock();
+        try {
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the approximate number of queued messages
+     */
+    int size() {
+        int size = 0;
+        for (MessageRing lane : mLanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    /**
+     * @param priority
+     * @return the approximate number of messages queued in the given lane
+     */
+    int size(Message.Priority priority) {
+        return mLanes[priority.ordinal()].size();
+    }
+
+    /**
+     * @param priority
+     * @return the number of messages the consumer has taken from the given lane (approximate if read from
+     *   another thread)
+     */
+    long takenCount(Message.Priority priority) {
+        return mTakenCounts[priority.ordinal()];
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+/**
+ * Places for files that other local users must not be able to read, replace or plant, such as lease files and
+ * the proxy socket.
+ */
+final class PrivateFiles {
+    static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+    static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+    private PrivateFiles() {}
+
+    /**
+     * Get the directory for this user's files: "qmismartcard" in $XDG_RUNTIME_DIR if it is set, or else
+     * "qmismartcard-<i>user</i>" in the temporary directory. It is created mode 0700 if needed.
+     * @return the directory
+     * @throws IOException if it can't be created, or it exists but isn't a directory only we can get at
+     */
+    static Path directory() throws IOException {
+        String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+        Path dir;
+        if (runtimeDir != null && !runtimeDir.isEmpty()) {
+            dir = Paths.get(runtimeDir, "qmismartcard");
+        } else {
+            dir = Paths.get(System.getProperty("java.io.tmpdir"), "qmismartcard-"+System.getProperty("user.name"));
+        }
+
+        try {
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+        } catch (FileAlreadyExistsException e) {
+            // checked below
+        }
+        PosixFileAttributes attributes = checkOwner(dir);
+        if (!attributes.isDirectory()) {
+            throw new IOException(dir+" is not a directory");
+        }
+        if (!OWNER_ONLY_DIRECTORY.containsAll(attributes.permissions())) {
+            throw new IOException(dir+" is accessible to other users");
+        }
+        return dir;
+    }
+
+    /**
+     * Check that a file (not following a symbolic link) is owned by the user we're running as.
+     * @param path
+     * @return the file's attributes
+     * @throws IOException if it is owned by someone else, or can't be read
+     */
+    static PosixFileAttributes checkOwner(Path path) throws IOException {
+        PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal user = currentUser();
+        if (!attributes.owner().equals(user)) {
+            throw new IOException(path+" is owned by "+attributes.owner().getName()+", not "+user.getName());
+        }
+        return attributes;
+    }
+
+    /**
+     * @return the user we're running as
+     * @throws IOException
+     */
+    static UserPrincipal currentUser() throws IOException {
+        return FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+    }
+}
@@ -131,7 +131,7 @@ enum QmiErrorCode {
     _Unknown(-1),
     ;
 
-    private int value;
+    final int value;
     QmiErrorCode(int value) { this.value = value; }
     public static QmiErrorCode fromValue(int value) {
         // TODO slow
@@ -0,0 +1,265 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A daemon that owns a QMI device and shares it with local processes over a Unix domain socket
+ * (like libqmi's qmi-proxy). Local clients speak QMUX frames, as they would to the device.
+ * <p>
+ * All local clients share the proxy's client ID for each service: a client ID allocation is answered
+ * with it, and a release is answered without releasing anything. Transaction IDs are remapped, so
+ * local clients can choose theirs freely. Indications are sent to every local client.
+ * <p>
+ * Only processes of the proxy's own user are served: the socket is mode 0600, and by default is in a private
+ * directory (see defaultSocketPath()).
+ * <p>
+ * Each local client has its own writer thread and a bounded queue of messages for it; one that doesn't keep up
+ * is disconnected, rather than holding up the device's input thread and so everyone else.
+ */
+public class QmiProxy implements MessageCallback {
+
+    private static final int CTL_ALLOCATE_CLIENT_ID = 0x22;
+    private static final int CTL_RELEASE_CLIENT_ID = 0x23;
+    // messages waiting to be written to a local client, before it's considered stuck
+    private static final int MAX_QUEUED_MESSAGES = 256;
+
+    private final Client qmiClient;
+    private final PrintStream debug;
+    private final Set<Connection> connections = new CopyOnWriteArraySet<>();
+
+    /**
+     * @param qmiClient a started client for the device
+     * @param debug an optional stream to output debug messages
+     */
+    public QmiProxy(Client qmiClient, PrintStream debug) {
+        this.qmiClient = qmiClient;
+        this.debug = debug;
+        qmiClient.registerForIndications(this);
+    }
+
+    /**
+     * Get the socket path used when none is given: proxy.sock in this user's private directory,
+     * $XDG_RUNTIME_DIR/qmismartcard or else qmismartcard-<i>user</i> in the temporary directory.
+     * The directory is created if needed.
+     * @return the path
+     * @throws IOException if the directory can't be made, or isn't ours
+     */
+    public static String defaultSocketPath() throws IOException {
+        return PrivateFiles.directory().resolve("proxy.sock").toString();
+    }
+
+    /**
+     * Accept local clients on the socket, forever.
+     * @param socketPath
+     * @throws IOException
+     */
+    public void serve(String socketPath) throws IOException {
+        UserPrincipal user = PrivateFiles.currentUser();
+        try (ServerSocketChannel server = UnixSockets.bind(socketPath)) {
+            debug("listening on "+socketPath);
+            for (;;) {
+                SocketChannel channel = server.accept();
+                // the socket's mode should already keep others out, but don't count on where it was put
+                UserPrincipal peer = UnixSockets.peerUser(channel);
+                if (peer != null && !peer.equals(user)) {
+                    debug("refusing local client of user "+peer.getName());
+                    channel.close();
+                    continue;
+                }
+                final Connection connection = new Connection(channel);
+                connections.add(connection);
+                connection.start();
+            }
+        }
+    }
+
+    @Override
+    public void onReceive(Message msg) {
+        for (Connection connection : connections) {
+            connection.write(msg);
+        }
+    }
+
+    private void debug(String msg) {
+        if (debug != null) debug.println(msg);
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final OutputStream out;
+        private final BlockingQueue<byte[]> outbound = new ArrayBlockingQueue<>(MAX_QUEUED_MESSAGES);
+        private final Thread readerThread, writerThread;
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.in = UnixSockets.inputStream(channel);
+            this.out = UnixSockets.outputStream(channel);
+            readerThread = new Thread(this::run, "QmiProxyConnection");
+            readerThread.setDaemon(true);
+            writerThread = new Thread(this::runWriter, "QmiProxyWriter");
+            writerThread.setDaemon(true);
+        }
+
+        void start() {
+            readerThread.start();
+            writerThread.start();
+        }
+
+        void run() {
+            debug("local client connected");
+            FrameDecoder decoder = new FrameDecoder(in, false, new AtomicLong(), new AtomicLong());
+            try {
+                for (;;) {
+                    handle(decoder.next());
+                }
+            } catch (IOException e) {
+                debug("local client disconnected: "+e);
+            } finally {
+                close();
+            }
+        }
+
+        private void runWriter() {
+            try {
+                for (;;) {
+                    out.write(outbound.take());
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (IOException e) {
+                if (!closed) debug("error writing to local client: "+e);
+                close();
+            }
+        }
+
+        /**
+         * Disconnect the local client. Its threads finish once their blocking calls fail.
+         */
+        void close() {
+            closed = true;
+            connections.remove(this);
+            writerThread.interrupt();
+            try {
+                channel.close();
+            } catch (IOException e) { /* ignore */ }
+        }
+
+        private void handle(Message request) {
+            final int localTxId = request.getTxId();
+            final int localClientId = request.getClientId();
+
+            if (request.getServiceCode() == ServiceCode.Control && request.getMessageCode() == CTL_ALLOCATE_CLIENT_ID) {
+                Tlv serviceTlv = request.getTlv(0x01);
+                if (serviceTlv == null || serviceTlv.getValue().length != 1) {
+                    write(makeControlResponse(request, QmiErrorCode.MissingArgument));
+                    return;
+                }
+                ServiceCode service = ServiceCode.fromValue(serviceTlv.getValue()[0] & 0xff);
+                Message response;
+                try {
+                    short clientId = qmiClient.getClientId(service);
+                    response = makeControlResponse(request, QmiErrorCode.None);
+                    response.addTlvBytes(0x01, new byte[] { (byte) service.value, (byte) clientId });
+                } catch (QmiErrorCodeException e) {
+                    response = makeControlResponse(request, e.getQmiErrorCode());
+                } catch (QmiException e) {
+                    response = makeControlResponse(request, QmiErrorCode.Internal);
+                }
+                write(response);
+            } else if (request.getServiceCode() == ServiceCode.Control && request.getMessageCode() == CTL_RELEASE_CLIENT_ID) {
+                // shared by everyone, so keep it; echo back what was released
+                Message response = makeControlResponse(request, QmiErrorCode.None);
+                Tlv releaseTlv = request.getTlv(0x01);
+                if (releaseTlv != null) response.addTlv(releaseTlv);
+                write(response);
+            } else {
+                try {
+                    qmiClient.sendAsync(request, response -> {
+                        response.setTxId(localTxId);
+                        response.setClientId(localClientId);
+                        write(response);
+                    });
+                } catch (QmiException e) {
+                    debug("error forwarding "+request+": "+e);
+                }
+            }
+        }
+
+        /**
+         * Queue a message to be written to the local client. Called from the connection thread and the QMI input
+         * thread, so this never blocks; if the client has fallen too far behind, it's disconnected instead.
+         * @param msg
+         */
+        void write(Message msg) {
+            if (closed) return;
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            try {
+                msg.writeToOutput(frame, true);
+            } catch (IOException e) {
+                debug("error encoding "+msg+": "+e);
+                return;
+            }
+            if (!outbound.offer(frame.toByteArray())) {
+                debug("local client isn't reading; disconnecting it");
+                close();
+            }
+        }
+    }
+
+    private static Message makeControlResponse(Message request, QmiErrorCode errorCode) {
+        Message response = new Message(ServiceCode.Control, request.getMessageCode());
+        response.setTxId(request.getTxId());
+        response.setFlags(Message.CONTROL_FLAG_RESPONSE);
+        int error = errorCode.value;
+        response.addTlvBytes(0x02, new byte[] {
+                (byte) (errorCode == QmiErrorCode.None ? 0 : 1), 0, (byte) error, (byte) (error >> 8) });
+        return response;
+    }
+
+    /**
+     * Run the proxy.
+     * @param args [device path [socket path]]
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        String devicePath = (args.length > 0) ? args[0] : DeviceDiscovery.findQmiDevice("/dev/cdc-wdm0");
+        String socketPath = (args.length > 1) ? args[1] : defaultSocketPath();
+
+        Client client = new LinuxFileClient(devicePath, System.err);
+        client.setPreallocatedServices(ServiceCode.Uim);
+        client.start();
+        // release the client IDs when killed
+        Runtime.getRuntime().addShutdownHook(new Thread(client::stop, "QmiProxyShutdown"));
+        new QmiProxy(client, System.err).serve(socketPath);
+    }
+}
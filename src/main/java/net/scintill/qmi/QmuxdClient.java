@@ -0,0 +1,191 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import com.google.common.io.LittleEndianDataInputStream;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A QMI client over Qualcomm's qmuxd client socket, so the modem can be used while the Android RIL stack
+ * (which also talks to qmuxd) keeps running.
+ * <p>
+ * qmuxd does not pass control service messages through; it allocates and releases client IDs itself.
+ * This class translates the control service's allocate/release requests to qmuxd's, and synthesizes
+ * control service responses from its replies, so the rest of Client works unchanged. Other control
+ * service requests are not supported, and are dropped.
+ * <p>
+ * The message layout follows https://github.com/scintill/qmiserial2qmuxd (see QmuxdHeader there).
+ * Everything is little-endian:
+ * <pre>
+ *   uint32 total message size, including this field
+ *   int32  qmux client ID (platform header)
+ *   int32  message ID (QMUXD_MSG_*)
+ *   int32  qmux client ID
+ *   uint32 qmux transaction ID
+ *   int32  system error code
+ *   int32  QMI error code
+ *   int32  QMI connection ID
+ *   int32  QMI service ID
+ *   uint8  QMI client ID
+ *   uint8  control flags
+ *   ...    payload: for QMI messages, the control/service header and TLVs
+ * </pre>
+ * On connecting, qmuxd first sends our qmux client ID as an int32.
+ */
+public class QmuxdClient extends Client {
+
+    public static final String DEFAULT_SOCKET_PATH = "/dev/socket/qmux_radio/qmux_connect_socket";
+    public static final String DEFAULT_CLIENT_SOCKET_PREFIX = "/dev/socket/qmux_radio/qmux_client_socket";
+
+    private static final int HEADER_SIZE = 4+4+4+4+4+4+4+4+4+1+1;
+
+    private static final int QMUXD_MSG_QMI = 1;
+    private static final int QMUXD_MSG_ALLOC_QMI_CLIENT_ID = 2;
+    private static final int QMUXD_MSG_RELEASE_QMI_CLIENT_ID = 3;
+
+    private static final int CTL_ALLOCATE_CLIENT_ID = 0x22;
+    private static final int CTL_RELEASE_CLIENT_ID = 0x23;
+
+    private final int qmuxClientId;
+    private final int connectionId;
+
+    /**
+     * Construct a QMI client connected to qmuxd.
+     * @param socketPath path to qmuxd's connect socket, e.g. DEFAULT_SOCKET_PATH
+     * @param clientSocketPath path to bind our end of the socket to (qmuxd expects DEFAULT_CLIENT_SOCKET_PREFIX
+     *   followed by something unique, such as the pid), or null to not bind
+     * @param connectionId the QMI connection (port) to use; 0 is the first one
+     * @param debug debug stream
+     * @throws IOException
+     */
+    public QmuxdClient(String socketPath, @Nullable String clientSocketPath, int connectionId, PrintStream debug) throws IOException {
+        this(UnixSockets.connect(socketPath, clientSocketPath), connectionId, debug);
+    }
+
+    private QmuxdClient(SocketChannel channel, int connectionId, PrintStream debug) throws IOException {
+        super(UnixSockets.inputStream(channel), UnixSockets.outputStream(channel), debug);
+        this.connectionId = connectionId;
+
+        ByteBuffer bb = ByteBuffer.allocate(4);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb) < 0) {
+                throw new IOException("EOF when reading qmux client ID");
+            }
+        }
+        bb.flip();
+        this.qmuxClientId = bb.getInt();
+    }
+
+    @Override
+    protected void writeMessage(OutputStream out, Message msg) throws IOException {
+        ByteBuffer bb;
+        if (msg.getServiceCode() == ServiceCode.Control) {
+            Tlv tlv = msg.getTlv(0x01);
+            if (tlv == null || (msg.getMessageCode() != CTL_ALLOCATE_CLIENT_ID && msg.getMessageCode() != CTL_RELEASE_CLIENT_ID)) {
+                return; // qmuxd has no way to pass it on
+            }
+            byte[] b = tlv.getValue();
+            boolean isAlloc = (msg.getMessageCode() == CTL_ALLOCATE_CLIENT_ID);
+            bb = makeHeader(isAlloc ? QMUXD_MSG_ALLOC_QMI_CLIENT_ID : QMUXD_MSG_RELEASE_QMI_CLIENT_ID, msg.getTxId(),
+                    b[0] & 0xff, (isAlloc || b.length < 2) ? 0 : b[1] & 0xff, 4);
+            bb.putInt(b[0] & 0xff); // service ID
+        } else {
+            bb = makeHeader(QMUXD_MSG_QMI, msg.getTxId(), msg.getServiceCode().value, msg.getClientId(), msg.getSduSize());
+            msg.writeSdu(bb, false);
+        }
+        out.write(bb.array());
+    }
+
+    private ByteBuffer makeHeader(int msgId, int txId, int serviceId, int clientId, int payloadSize) {
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(bb.limit());
+        bb.putInt(qmuxClientId);
+        bb.putInt(msgId);
+        bb.putInt(qmuxClientId);
+        bb.putInt(txId);
+        bb.putInt(0); // system error code
+        bb.putInt(0); // QMI error code
+        bb.putInt(connectionId);
+        bb.putInt(serviceId);
+        bb.put((byte) clientId);
+        bb.put((byte) 0); // control flags
+        return bb;
+    }
+
+    @Override
+    protected Message readMessage(InputStream in) throws IOException {
+        for (;;) { // until we get something that translates to a QMI message
+            LittleEndianDataInputStream di = new LittleEndianDataInputStream(in);
+            int totalSize;
+            try {
+                totalSize = di.readInt();
+            } catch (EOFException e) {
+                throw new IOException("EOF when reading", e);
+            }
+            if (totalSize < HEADER_SIZE) {
+                throw new IOException("invalid qmuxd message size "+totalSize);
+            }
+            byte[] buf = new byte[totalSize - 4];
+            di.readFully(buf);
+
+            di = new LittleEndianDataInputStream(new ByteArrayInputStream(buf));
+            di.readInt(); // platform qmux client ID
+            int msgId = di.readInt();
+            di.readInt(); // qmux client ID
+            int txId = di.readInt();
+            int sysErrorCode = di.readInt();
+            int qmiErrorCode = di.readInt();
+            di.readInt(); // connection ID
+            int serviceId = di.readInt();
+            int clientId = di.readUnsignedByte();
+            di.readUnsignedByte(); // control flags
+
+            switch (msgId) {
+                case QMUXD_MSG_QMI:
+                    return Message.decodeSdu(ServiceCode.fromValue(serviceId), clientId, di);
+                case QMUXD_MSG_ALLOC_QMI_CLIENT_ID:
+                case QMUXD_MSG_RELEASE_QMI_CLIENT_ID:
+                    return makeControlResponse(msgId == QMUXD_MSG_ALLOC_QMI_CLIENT_ID ? CTL_ALLOCATE_CLIENT_ID : CTL_RELEASE_CLIENT_ID,
+                            txId, serviceId, clientId, (sysErrorCode != 0 && qmiErrorCode == 0) ? QmiErrorCode.Internal.value : qmiErrorCode);
+                default:
+                    // not something we asked about
+                    break;
+            }
+        }
+    }
+
+    private static Message makeControlResponse(int msgCode, int txId, int serviceId, int clientId, int errorCode) {
+        Message msg = new Message(ServiceCode.Control, msgCode);
+        msg.setTxId(txId);
+        msg.setFlags(Message.CONTROL_FLAG_RESPONSE);
+        msg.addTlvBytes(0x02, new byte[] { (byte) (errorCode == 0 ? 0 : 1), 0, (byte) errorCode, (byte) (errorCode >> 8) });
+        msg.addTlvBytes(0x01, new byte[] { (byte) serviceId, (byte) clientId });
+        return msg;
+    }
+}
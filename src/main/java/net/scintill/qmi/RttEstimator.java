@@ -0,0 +1,127 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Smoothed round-trip time estimates per (service, message code), used to derive timeouts. This is the
+ * TCP retransmission timer calculation (RFC 6298): timeout = SRTT + 4 * RTTVAR, doubled after each
+ * timeout until a response is seen again.
+ */
+final class RttEstimator {
+    private final ConcurrentMap<Integer, Estimate> mEstimates = new ConcurrentHashMap<>();
+    private volatile int mInitialTimeout;
+    private volatile int mMinTimeout;
+    private volatile int mMaxTimeout;
+
+    /**
+     * @param initialTimeout timeout in ms before there are any samples
+     * @param minTimeout lower bound in ms
+     * @param maxTimeout upper bound in ms
+     */
+    RttEstimator(int initialTimeout, int minTimeout, int maxTimeout) {
+        setBounds(initialTimeout, minTimeout, maxTimeout);
+    }
+
+    void setBounds(int initialTimeout, int minTimeout, int maxTimeout) {
+        if (minTimeout <= 0 || minTimeout > maxTimeout || initialTimeout < minTimeout || initialTimeout > maxTimeout) {
+            throw new IllegalArgumentException("invalid timeout bounds");
+        }
+        mInitialTimeout = initialTimeout;
+        mMinTimeout = minTimeout;
+        mMaxTimeout = maxTimeout;
+    }
+
+    /**
+     * Add a round-trip time sample.
+     * @param service
+     * @param msgCode
+     * @param rttNanos
+     */
+    void sample(ServiceCode service, int msgCode, long rttNanos) {
+        Estimate estimate = getEstimate(service, msgCode);
+        double rtt = rttNanos / 1e6;
+        synchronized (estimate) {
+            if (estimate.mSamples == 0) {
+                estimate.mSrtt = rtt;
+                estimate.mRttVar = rtt / 2;
+            } else {
+                estimate.mRttVar = 0.75 * estimate.mRttVar + 0.25 * Math.abs(estimate.mSrtt - rtt);
+                estimate.mSrtt = 0.875 * estimate.mSrtt + 0.125 * rtt;
+            }
+            estimate.mSamples++;
+            estimate.mBackoff = 1;
+        }
+    }
+
+    /**
+     * Note that a transaction timed out, so the next timeout will be longer.
+     * @param service
+     * @param msgCode
+     */
+    void timedOut(ServiceCode service, int msgCode) {
+        Estimate estimate = getEstimate(service, msgCode);
+        synchronized (estimate) {
+            if (estimate.mBackoff < 64) estimate.mBackoff *= 2;
+        }
+    }
+
+    /**
+     * @param service
+     * @param msgCode
+     * @return the timeout in ms
+     */
+    int getTimeout(ServiceCode service, int msgCode) {
+        Estimate estimate = getEstimate(service, msgCode);
+        double timeout;
+        synchronized (estimate) {
+            timeout = (estimate.mSamples == 0) ? mInitialTimeout : (estimate.mSrtt + 4 * estimate.mRttVar);
+            timeout *= estimate.mBackoff;
+        }
+        return (int) Math.max(mMinTimeout, Math.min(mMaxTimeout, Math.ceil(timeout)));
+    }
+
+    /**
+     * @param service
+     * @param msgCode
+     * @return the smoothed round-trip time in ms, or -1 if there are no samples
+     */
+    double getSmoothedRtt(ServiceCode service, int msgCode) {
+        Estimate estimate = getEstimate(service, msgCode);
+        synchronized (estimate) {
+            return (estimate.mSamples == 0) ? -1 : estimate.mSrtt;
+        }
+    }
+
+    private Estimate getEstimate(ServiceCode service, int msgCode) {
+        int key = (service.value & 0xff) << 16 | (msgCode & 0xffff);
+        Estimate estimate = mEstimates.get(key);
+        if (estimate == null) {
+            estimate = mEstimates.computeIfAbsent(key, k -> new Estimate());
+        }
+        return estimate;
+    }
+
+    private static class Estimate {
+        double mSrtt;
+        double mRttVar;
+        long mSamples;
+        int mBackoff = 1;
+    }
+}
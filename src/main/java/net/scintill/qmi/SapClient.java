@@ -16,32 +16,128 @@
 
 package net.scintill.qmi;
 
+import javax.annotation.Nullable;
 import javax.smartcardio.ATR;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
-import java.util.List;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A client for the QMI SIM Access Profile service (typically over bluetooth).
+ * A client for the QMI SIM Access Profile service (typically over bluetooth). There is one per slot; several
+ * slots can be used at once through the same Client.
  */
-public class SapClient implements MessageCallback {
+public class SapClient {
 
     private final Client qmiClient;
     private final byte slot;
-    private final AtomicReference<ConnectionStatus> connectionStatusHolder = new AtomicReference<>(ConnectionStatus.NotEnabled);
+    // limits this slot's APDUs waiting for a response, so one busy slot can't fill the shared send queue
+    private volatile InFlightLimit apdusInFlight = new InFlightLimit(DEFAULT_MAX_APDUS_IN_FLIGHT);
+    private final AtomicLong accessDeniedCount = new AtomicLong();
+    private volatile int requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    // null until known. Updated from connection status indications (message 62), and from our own queries and requests.
+    private volatile ConnectionStatus connectionStatus;
+    // a lock rather than a monitor, so virtual threads waiting for the connection are not pinned
+    private final ReentrantLock connectionStatusLock = new ReentrantLock();
+    private final Condition connectionStatusChanged = connectionStatusLock.newCondition();
+    // only valid while connected, and until the SIM is reset
+    private volatile ATR cachedAtr;
+
+    private static final Set<ConnectionStatus> CONNECT_FINISHED =
+            EnumSet.of(ConnectionStatus.ConnectedSuccessfully, ConnectionStatus.ConnectionError);
+    private static final Set<ConnectionStatus> DISCONNECT_FINISHED =
+            EnumSet.of(ConnectionStatus.DisconnectedSuccessfully, ConnectionStatus.NotEnabled);
+
+    private static final int RESUME_TIMEOUT = 10000;
+
+    public static final int DEFAULT_MAX_APDUS_IN_FLIGHT = 2;
+    /**
+     * Card commands, the ATR and resets get this long (in ms) by default. They aren't given the Client's adaptive
+     * timeouts, which would be learned from quick commands like READ BINARY, and then cut off slow ones like
+     * RUN GSM ALGORITHM, ENVELOPE or a reset while the card is still working on them.
+     */
+    public static final int DEFAULT_REQUEST_TIMEOUT = 30000;
+
+    // T=0 procedure bytes
+    private static final int SW1_BYTES_AVAILABLE = 0x61;
+    private static final int SW1_GSM_BYTES_AVAILABLE = 0x9f; // the GSM 11.11 equivalent
+    private static final int SW1_WRONG_LE = 0x6c;
+    private static final int INS_GET_RESPONSE = 0xc0;
+    // a card that keeps asking for more is not going to stop
+    private static final int MAX_FOLLOW_UPS = 32;
 
     // message codes
     private static final int SAP_CONNECT = 60;
     private static final int SAP_REQUEST = 61;
+    /* package */ static final int SAP_CONNECTION_INDICATION = 62;
 
+    /**
+     * @param qmiClient
+     * @param slot slot number, starting at 1
+     */
     public SapClient(Client qmiClient, byte slot) {
         this.qmiClient = qmiClient;
         this.slot = slot;
-        qmiClient.registerForIndications(this);
+        SapIndicationRouter.forClient(qmiClient).add(this);
+    }
+
+    /**
+     * @return the slot number, starting at 1
+     */
+    public byte getSlot() {
+        return slot;
+    }
+
+    /**
+     * @return how many APDUs the QMI service refused with AccessDenied, and were answered with 98 04 here
+     */
+    public long getAccessDeniedCount() {
+        return accessDeniedCount.get();
+    }
+
+    /**
+     * Set how many APDUs may be waiting for a response on this slot at once. Further senders wait their turn.
+     * @param max at least 1
+     * @throws IllegalArgumentException if max is less than 1, which would let nothing be sent
+     */
+    public void setMaxApdusInFlight(int max) {
+        if (max < 1) throw new IllegalArgumentException("max APDUs in flight must be at least 1, not "+max);
+        apdusInFlight = new InFlightLimit(max);
+    }
+
+    /**
+     * Set how long to wait for the response to a card command, the ATR or a reset.
+     * @param timeout in ms, or 0 for infinite
+     */
+    public void setRequestTimeout(int timeout) {
+        requestTimeout = timeout;
+    }
+
+    /**
+     * The device was lost and came back, so any connection is gone. Resume it if we had one.
+     */
+    /* package */ void onClientRecovered() {
+        boolean wasConnected = (connectionStatus == ConnectionStatus.ConnectedSuccessfully);
+        setConnectionStatus(null);
+        if (wasConnected) {
+            try {
+                ensureConnected(RESUME_TIMEOUT);
+            } catch (QmiException e) {
+                // the next user will find out
+            }
+        }
     }
 
     public enum ConnectionStatus {
@@ -52,7 +148,37 @@ public class SapClient implements MessageCallback {
         Disconnecting,
         DisconnectedSuccessfully;
 
-        public static ConnectionStatus fromInt(int value) { return ConnectionStatus.values()[value]; }
+        /**
+         * @param value a status value from the modem
+         * @return the status, or null if the value isn't one we know
+         */
+        @Nullable
+        public static ConnectionStatus fromInt(int value) {
+            return (value >= 0 && value < values().length) ? values()[value] : null;
+        }
+    }
+
+    /**
+     * Make sure there is a SAP connection to the SIM, reusing an existing one if possible. Block until connected,
+     * or timeout occurs.
+     * @param timeout in ms, or 0 for infinite (for each of the steps needed)
+     * @throws QmiException
+     * @return false if timeout or error
+     */
+    public boolean ensureConnected(int timeout) throws QmiException {
+        ConnectionStatus status = connectionStatus;
+        if (status == null) {
+            status = getConnectionStatus();
+        }
+
+        if (status == ConnectionStatus.ConnectedSuccessfully) {
+            return true;
+        }
+        // we sometimes get stuck in Connecting state
+        if (status == ConnectionStatus.Connecting && !awaitStatus(CONNECT_FINISHED, timeout)) {
+            disconnect(timeout);
+        }
+        return connect(timeout);
     }
 
     /**
@@ -76,59 +202,118 @@ public class SapClient implements MessageCallback {
     }
 
     /**
-     * Connect/disconnect to the SIM via SAP. If connecting, block until connected, or timeout occurs.
+     * Connect/disconnect to the SIM via SAP. Block until the connection indication says it is done, or timeout occurs.
      * @param isConnecting true to connect
      * @param timeout in ms, or 0 for infinite
      * @throws QmiException
      * @return false if timeout or error
      */
     private boolean connect(boolean isConnecting, int timeout) throws QmiException {
-        sendSapMessage(SAP_CONNECT, isConnecting ? 1 : 0,
-                //new Tlv((short) 0x12, new byte[] { 3 }) // connection condition = allow
-                null
-        );
-
-        List<ConnectionStatus> finishedStatuses = Arrays.asList(isConnecting ?
-            new ConnectionStatus[] { ConnectionStatus.ConnectedSuccessfully, ConnectionStatus.ConnectionError } :
-            new ConnectionStatus[] { ConnectionStatus.DisconnectedSuccessfully, ConnectionStatus.NotEnabled });
-
-        // TODO is this stupid, or just expectedly boilerplatey?
-        if (!finishedStatuses.contains(connectionStatusHolder.get())) {
-            synchronized (connectionStatusHolder) {
-                try {
-                    connectionStatusHolder.wait(timeout);
-                } catch (InterruptedException e) { /* fall through */ }
+        Set<ConnectionStatus> finishedStatuses = isConnecting ? CONNECT_FINISHED : DISCONNECT_FINISHED;
+        ConnectionStatus status = connectionStatus;
+        if (status == (isConnecting ? ConnectionStatus.ConnectedSuccessfully : ConnectionStatus.DisconnectedSuccessfully)
+                || (!isConnecting && status == ConnectionStatus.NotEnabled)) {
+            return true; // already there
+        }
 
-                if (!finishedStatuses.contains(connectionStatusHolder.get())) {
-                    return false;
+        // so a finished status left over from before isn't mistaken for the result of this request
+        setConnectionStatus(isConnecting ? ConnectionStatus.Connecting : ConnectionStatus.Disconnecting);
+        try {
+            sendSapMessage(SAP_CONNECT, isConnecting ? 1 : 0,
+                    //new Tlv((short) 0x12, new byte[] { 3 }) // connection condition = allow
+                    null
+            );
+        } catch (QmiException e) {
+            connectionStatus = null; // we don't know any more
+            throw e;
+        }
+
+        if (!awaitStatus(finishedStatuses, timeout)) {
+            return false;
+        }
+        return connectionStatus != ConnectionStatus.ConnectionError;
+    }
+
+    /**
+     * Wait for the connection status to become one of the given ones.
+     * @param statuses
+     * @param timeout in ms, or 0 for infinite
+     * @return false if timeout or interrupted
+     */
+    private boolean awaitStatus(Set<ConnectionStatus> statuses, int timeout) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        connectionStatusLock.lock();
+        try {
+            while (!statuses.contains(connectionStatus)) {
+                if (timeout == 0) {
+                    connectionStatusChanged.await();
+                } else {
+                    if (remaining <= 0) return false;
+                    remaining = connectionStatusChanged.awaitNanos(remaining);
                 }
             }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            connectionStatusLock.unlock();
         }
+    }
 
-        return true;
+    private void setConnectionStatus(ConnectionStatus status) {
+        connectionStatusLock.lock();
+        try {
+            if (status != ConnectionStatus.ConnectedSuccessfully) {
+                cachedAtr = null;
+            }
+            connectionStatus = status;
+            connectionStatusChanged.signalAll();
+        } finally {
+            connectionStatusLock.unlock();
+        }
     }
 
     /**
-     * Reset the SIM card.
+     * Reset the SIM card. The SAP connection stays up.
      * @throws QmiException
      */
     public void resetSim() throws QmiException {
+        cachedAtr = null;
         sendSapMessage(SAP_REQUEST, 4);
         //sendSapMessage(SAP_REQUEST, 2); // power off
         //sendSapMessage(SAP_REQUEST, 3); // power on
     }
 
+    /**
+     * Ask the modem for the connection status.
+     * @return the status
+     * @throws QmiException
+     */
     public ConnectionStatus getConnectionStatus() throws QmiException {
-        return ConnectionStatus.fromInt(sendSapMessage(SAP_CONNECT, 2).getTlv(0x10).getValue()[0]);
+        int value = sendSapMessage(SAP_CONNECT, 2).getTlv(0x10).getValue()[0] & 0xff;
+        ConnectionStatus status = ConnectionStatus.fromInt(value);
+        if (status == null) {
+            throw new QmiException("unknown SAP connection status "+value);
+        }
+        setConnectionStatus(status);
+        return status;
     }
 
     /**
-     * Get the card's ATR value.
+     * Get the card's ATR value. It is cached for as long as the connection lasts and the card is not reset.
      * @return the ATR
      * @throws QmiException
      */
     public ATR getAtr() throws QmiException {
-        return parseAtrTlv(sendSapMessage(SAP_REQUEST, 0).getTlv(0x10));
+        ATR atr = cachedAtr;
+        if (atr == null) {
+            atr = parseAtrTlv(sendSapMessage(SAP_REQUEST, 0).getTlv(0x10));
+            if (connectionStatus == ConnectionStatus.ConnectedSuccessfully) {
+                cachedAtr = atr;
+            }
+        }
+        return atr;
     }
 
     /**
@@ -138,6 +323,177 @@ public class SapClient implements MessageCallback {
      * @throws QmiException
      */
     public ResponseAPDU sendApdu(CommandAPDU commandApdu) throws QmiException {
+        return sendApdu(commandApdu, false);
+    }
+
+    /**
+     * Send an APDU to the card and return the response. See sendApduAsync(CommandAPDU, boolean).
+     * @param commandApdu
+     * @param followUps true to do T=0 GET RESPONSE and resend follow-ups
+     * @return the response PDU
+     * @throws QmiException
+     */
+    public ResponseAPDU sendApdu(CommandAPDU commandApdu, boolean followUps) throws QmiException {
+        AtomicReference<Message> lastSent = new AtomicReference<>();
+        try {
+            ResponseAPDU responseApdu = sendApduAsync(commandApdu, followUps, lastSent).get();
+            // the exchange's last transaction is the one the caller was waiting for
+            TransactionTrace trace = lastSent.get().getTrace();
+            if (trace != null) trace.stamp(TransactionTrace.Stage.Woken);
+            return responseApdu;
+        } catch (InterruptedException e) {
+            throw new QmiException("interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof QmiException) {
+                throw (QmiException) e.getCause();
+            }
+            throw new QmiException("error sending APDU: "+e.getCause());
+        }
+    }
+
+    /**
+     * Send an APDU to the card without waiting for the response. See sendApduAsync(CommandAPDU, boolean).
+     */
+    public CompletableFuture<ResponseAPDU> sendApduAsync(CommandAPDU commandApdu) throws QmiException {
+        return sendApduAsync(commandApdu, false);
+    }
+
+    /**
+     * Send an APDU to the card without waiting for the response. This only blocks while the slot has as many
+     * APDUs in flight as it is allowed (see setMaxApdusInFlight()).
+     * <p>
+     * With follow-ups, the T=0 procedure bytes are handled here rather than by the caller: after 61xx (or GSM's
+     * 9Fxx), GET RESPONSE fetches the rest of the data, and after 6Cxx, the command is resent with the Le the card
+     * asked for. Each is sent as soon as the response that called for it arrives. The response returned has all of
+     * the data, and the last status word. A GET RESPONSE must directly follow the command it's for, so such an
+     * exchange has the slot to itself, from the command to the last follow-up: it takes all of the slot's in-flight
+     * permits, waiting for APDUs already in flight, and holding up those sent after it. Exchanges with follow-ups
+     * are therefore never pipelined.
+     * <p>
+     * The future is completed on the Client's input thread; see Client.sendFuture().
+     * @param commandApdu
+     * @param followUps true to do T=0 GET RESPONSE and resend follow-ups
+     * @return a future for the response PDU, which fails with a QmiException
+     * @throws QmiException if the APDU can't be sent
+     */
+    public CompletableFuture<ResponseAPDU> sendApduAsync(CommandAPDU commandApdu, boolean followUps) throws QmiException {
+        return sendApduAsync(commandApdu, followUps, new AtomicReference<>());
+    }
+
+    private CompletableFuture<ResponseAPDU> sendApduAsync(CommandAPDU commandApdu, boolean followUps,
+                                                          AtomicReference<Message> lastSent) throws QmiException {
+        final Semaphore inFlight = apdusInFlight.permits;
+        // the semaphore is fair, so waiting for all of them doesn't let later APDUs overtake
+        final int permits = followUps ? apdusInFlight.max : 1;
+        try {
+            inFlight.acquire(permits);
+        } catch (InterruptedException e) {
+            throw new QmiException("interrupted");
+        }
+
+        // follow-ups go out under the permits taken here, which keep anything else from getting between them
+        final CompletableFuture<ResponseAPDU> exchange = new CompletableFuture<>();
+        final CompletableFuture<ResponseAPDU> apduFuture = new CompletableFuture<>();
+        exchange.whenComplete((responseApdu, e) -> {
+            inFlight.release(permits);
+            if (e == null) {
+                apduFuture.complete(responseApdu);
+            } else {
+                apduFuture.completeExceptionally(e);
+            }
+        });
+
+        try {
+            exchange(commandApdu, followUps, new ByteArrayOutputStream(), 0, exchange, lastSent);
+        } catch (QmiException e) {
+            exchange.completeExceptionally(e);
+            throw e;
+        }
+        return apduFuture;
+    }
+
+    /**
+     * Send an APDU, and any follow-ups its response calls for, then complete the exchange with the combined response.
+     * @param commandApdu
+     * @param followUps
+     * @param data the response data of the exchange so far
+     * @param followUpCount the number of follow-ups sent so far
+     * @param exchange
+     * @param lastSent set to the message of each APDU as it's sent
+     * @throws QmiException if the APDU can't be sent
+     */
+    private void exchange(final CommandAPDU commandApdu, final boolean followUps, final ByteArrayOutputStream data,
+                          final int followUpCount, final CompletableFuture<ResponseAPDU> exchange,
+                          final AtomicReference<Message> lastSent) throws QmiException {
+        transmit(commandApdu, lastSent).whenComplete((responseApdu, e) -> {
+            if (e != null) {
+                exchange.completeExceptionally(e);
+                return;
+            }
+
+            CommandAPDU followUp = (followUps && followUpCount < MAX_FOLLOW_UPS) ? getFollowUp(commandApdu, responseApdu) : null;
+            if (responseApdu.getSW1() != SW1_WRONG_LE) {
+                // the data of a wrong length response is not wanted
+                data.write(responseApdu.getData(), 0, responseApdu.getData().length);
+            }
+            if (followUp == null) {
+                byte[] combined = Arrays.copyOf(data.toByteArray(), data.size() + 2);
+                combined[data.size()] = (byte) responseApdu.getSW1();
+                combined[data.size() + 1] = (byte) responseApdu.getSW2();
+                exchange.complete(new ResponseAPDU(combined));
+                return;
+            }
+
+            try {
+                exchange(followUp, true, data, followUpCount + 1, exchange, lastSent);
+            } catch (QmiException sendException) {
+                exchange.completeExceptionally(sendException);
+            }
+        });
+    }
+
+    /**
+     * Get the command the T=0 procedure bytes in a response call for.
+     * @param commandApdu
+     * @param responseApdu
+     * @return the follow-up, or null if none is needed
+     */
+    private static CommandAPDU getFollowUp(CommandAPDU commandApdu, ResponseAPDU responseApdu) {
+        int ne = (responseApdu.getSW2() == 0) ? 256 : responseApdu.getSW2();
+        switch (responseApdu.getSW1()) {
+            case SW1_BYTES_AVAILABLE:
+            case SW1_GSM_BYTES_AVAILABLE:
+                return new CommandAPDU(getResponseCla(commandApdu.getCLA()), INS_GET_RESPONSE, 0, 0, ne);
+            case SW1_WRONG_LE:
+                return (commandApdu.getNc() == 0)
+                        ? new CommandAPDU(commandApdu.getCLA(), commandApdu.getINS(), commandApdu.getP1(), commandApdu.getP2(), ne)
+                        : new CommandAPDU(commandApdu.getCLA(), commandApdu.getINS(), commandApdu.getP1(), commandApdu.getP2(),
+                                commandApdu.getData(), ne);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Get the class byte for a GET RESPONSE following a command of the given class.
+     * @param cla
+     * @return the class byte
+     */
+    private static int getResponseCla(int cla) {
+        if ((cla & 0xf0) == 0xa0) return 0xa0; // GSM 11.11
+        if ((cla & 0x40) != 0) return cla & 0x4f; // further interindustry class, keeping the channel
+        return cla & 0x03; // interindustry (even after a proprietary command), keeping the channel
+    }
+
+    /**
+     * Send one APDU, without follow-ups or the in-flight limit.
+     * @param commandApdu
+     * @param lastSent set to the message sent
+     * @return a future for the response PDU
+     * @throws QmiException if the APDU can't be sent
+     */
+    private CompletableFuture<ResponseAPDU> transmit(CommandAPDU commandApdu, AtomicReference<Message> lastSent)
+            throws QmiException {
         // build TLV for APDU
         ByteBuffer bb = ByteBuffer.allocate(2 + commandApdu.getBytes().length);
         bb.order(ByteOrder.LITTLE_ENDIAN);
@@ -147,21 +503,34 @@ public class SapClient implements MessageCallback {
         bb.put(commandApdu.getBytes());
 
         Tlv apduTlv = new Tlv((short) 0x10, bb.array());
+        Message msg = makeSapMessage(SAP_REQUEST, 1, apduTlv, Message.Priority.Bulk);
+        lastSent.set(msg);
 
         // send APDU
-        Message resp;
-        try {
-            resp = sendSapMessage(SAP_REQUEST, 1, apduTlv);
-        } catch (QmiErrorCodeException e) {
-            // TODO can we do better? AFAICT, the card is not denying this, the QMI service is
-            if (e.getQmiErrorCode() == QmiErrorCode.AccessDenied) {
-                return new ResponseAPDU(new byte[]{ (byte) 0x98, (byte) 0x04 }); // Access Condition not fulfilled
+        CompletableFuture<Message> responseFuture =
+                qmiClient.sendFuture(msg, requestTimeout);
+
+        final CompletableFuture<ResponseAPDU> apduFuture = new CompletableFuture<>();
+        responseFuture.whenComplete((resp, e) -> {
+            if (e == null) {
+                try {
+                    apduFuture.complete(parseApduResponse(resp));
+                } catch (QmiException parseException) {
+                    apduFuture.completeExceptionally(parseException);
+                }
+            } else if (e instanceof QmiErrorCodeException
+                    && ((QmiErrorCodeException) e).getQmiErrorCode() == QmiErrorCode.AccessDenied) {
+                // TODO can we do better? AFAICT, the card is not denying this, the QMI service is
+                accessDeniedCount.incrementAndGet();
+                apduFuture.complete(new ResponseAPDU(new byte[]{ (byte) 0x98, (byte) 0x04 })); // Access Condition not fulfilled
             } else {
-                throw e;
+                apduFuture.completeExceptionally(e);
             }
-        }
+        });
+        return apduFuture;
+    }
 
-        // parse response
+    private static ResponseAPDU parseApduResponse(Message resp) throws QmiException {
         Tlv tlv = resp.getTlv(0x11);
         if (tlv == null) {
             throw new QmiException("APDU response TLV not returned");
@@ -170,7 +539,7 @@ public class SapClient implements MessageCallback {
         if (b.length < 2) {
             throw new QmiException("invalid APDU response TLV");
         }
-        int length = b[0] | b[1] << 8;
+        int length = (b[0] & 0xff) | (b[1] & 0xff) << 8;
         if (length != b.length - 2) {
             throw new QmiException("invalid APDU response length");
         }
@@ -183,25 +552,31 @@ public class SapClient implements MessageCallback {
     }
 
     private Message sendSapMessage(int msgCode, int reqCode, Tlv addlTlv) throws QmiException {
+        return sendSapMessage(msgCode, reqCode, addlTlv, Message.Priority.Management);
+    }
+
+    private Message sendSapMessage(int msgCode, int reqCode, Tlv addlTlv, Message.Priority priority) throws QmiException {
+        Message msg = makeSapMessage(msgCode, reqCode, addlTlv, priority);
+        // requests go to the card, and can take much longer than the round trips the adaptive timeout is based on
+        return (msgCode == SAP_REQUEST) ? qmiClient.send(msg, requestTimeout) : qmiClient.send(msg);
+    }
+
+    private Message makeSapMessage(int msgCode, int reqCode, Tlv addlTlv, Message.Priority priority) {
         Message msg = new Message(ServiceCode.Uim, msgCode);
         msg.addTlvBytes(1, new byte[] { (byte) reqCode, slot });
         if (addlTlv != null) msg.addTlv(addlTlv);
-        return qmiClient.send(msg);
-    }
-
-    @Override
-    public void onReceive(Message msg) {
-        if (msg.getServiceCode() == ServiceCode.Uim && msg.getMessageCode() == 62) {
-            Tlv tlv = msg.getTlv(0x10);
-            if (tlv != null) {
-                byte[] b = tlv.getValue();
-                if (b[1] == slot) {
-                    synchronized (connectionStatusHolder) {
-                        connectionStatusHolder.set(ConnectionStatus.fromInt(b[0]));
-                        connectionStatusHolder.notify();
-                    }
-                }
-            }
+        msg.setPriority(priority);
+        return msg;
+    }
+
+    /**
+     * Called by SapIndicationRouter with a connection indication for our slot.
+     * @param value the connection status value; one we don't know is ignored
+     */
+    /* package */ void onConnectionIndication(int value) {
+        ConnectionStatus status = ConnectionStatus.fromInt(value);
+        if (status != null) {
+            setConnectionStatus(status);
         }
     }
 
@@ -222,4 +597,13 @@ public class SapClient implements MessageCallback {
         return new ATR(Arrays.copyOfRange(b, 1, b.length));
     }
 
+    private static final class InFlightLimit {
+        final Semaphore permits;
+        final int max;
+
+        InFlightLimit(int max) {
+            this.permits = new Semaphore(max, true);
+            this.max = max;
+        }
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers SAP connection indications from a Client to the SapClients of the slot they are about, so each
+ * SapClient is not handed every indication for every slot. There is one per Client.
+ */
+/* package */ final class SapIndicationRouter implements MessageCallback {
+
+    private static final Map<Client, SapIndicationRouter> sRouters = new WeakHashMap<>();
+
+    private final ConcurrentMap<Byte, List<SapClient>> sapClients = new ConcurrentHashMap<>();
+
+    private SapIndicationRouter(Client qmiClient) {
+        qmiClient.registerForIndications(this);
+        qmiClient.addRecoveryListener(this::onClientRecovered);
+    }
+
+    /**
+     * Get the router for the client, registering it for indications the first time.
+     * @param qmiClient
+     * @return the router
+     */
+    static synchronized SapIndicationRouter forClient(Client qmiClient) {
+        SapIndicationRouter router = sRouters.get(qmiClient);
+        if (router == null) {
+            router = new SapIndicationRouter(qmiClient);
+            sRouters.put(qmiClient, router);
+        }
+        return router;
+    }
+
+    void add(SapClient sapClient) {
+        sapClients.computeIfAbsent(sapClient.getSlot(), slot -> new CopyOnWriteArrayList<>()).add(sapClient);
+    }
+
+    @Override
+    public void onReceive(Message msg) {
+        if (msg.getServiceCode() != ServiceCode.Uim || msg.getMessageCode() != SapClient.SAP_CONNECTION_INDICATION) {
+            return;
+        }
+        Tlv tlv = msg.getTlv(0x10);
+        if (tlv == null) return;
+        byte[] b = tlv.getValue();
+        if (b.length < 2) return;
+
+        List<SapClient> slotClients = sapClients.get(b[1]);
+        if (slotClients != null) {
+            for (SapClient sapClient : slotClients) {
+                sapClient.onConnectionIndication(b[0] & 0xff);
+            }
+        }
+    }
+
+    private void onClientRecovered() {
+        // resume the slots side by side; each may take a while to reconnect
+        Thread[] threads = new Thread[sapClients.size()];
+        int i = 0;
+        for (final List<SapClient> slotClients : sapClients.values()) {
+            if (i == threads.length) break;
+            threads[i] = new Thread(() -> {
+                for (SapClient sapClient : slotClients) {
+                    sapClient.onClientRecovered();
+                }
+            }, "SapResume");
+            threads[i++].start();
+        }
+        for (int j = 0; j < i; j++) {
+            try {
+                threads[j].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi;
+
+import javax.annotation.Nullable;
+import javax.smartcardio.CommandAPDU;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-process modem with SIM cards in its slots, connected to a Client by pipes, for exercising the client (and
+ * everything on top of it) without hardware. It answers the messages this project sends: client ID allocation,
+ * device identification, UIM card status, and the SAP connection, ATR, reset and APDU requests. Anything else gets
+ * an empty successful response.
+ * <p>
+ * APDUs are answered by a Card, after a configurable latency; the other messages are answered right away.
+ */
+public final class SimulatedModem {
+
+    /**
+     * The cards in the slots.
+     */
+    public interface Card {
+        /**
+         * @param slot slot number, starting at 1
+         * @param command the command APDU
+         * @return the response APDU, with the status word
+         */
+        byte[] transmit(byte slot, byte[] command);
+    }
+
+    /**
+     * A card that answers every command with 9000, and as many (zero) data bytes as Le asks for.
+     */
+    public static final Card DEFAULT_CARD = (slot, command) -> {
+        int ne;
+        try {
+            ne = new CommandAPDU(command).getNe();
+        } catch (IllegalArgumentException e) {
+            return new byte[] { 0x67, 0x00 }; // wrong length
+        }
+        byte[] response = new byte[ne + 2];
+        response[ne] = (byte) 0x90;
+        return response;
+    };
+
+    private static final byte[] ATR = { 0x3b, 0x00 };
+
+    // message codes
+    private static final int CTL_ALLOCATE_CLIENT_ID = 0x22;
+    private static final int CTL_RELEASE_CLIENT_ID = 0x23;
+    private static final int DMS_GET_MANUFACTURER = 0x21;
+    private static final int DMS_GET_MODEL = 0x22;
+    private static final int DMS_GET_REVISION = 0x23;
+    private static final int UIM_GET_CARD_STATUS = 0x2f;
+    private static final int SAP_CONNECT = 60;
+    private static final int SAP_REQUEST = 61;
+    private static final int SAP_CONNECTION_INDICATION = 62;
+
+    // SAP connection states, as in SapClient.ConnectionStatus
+    private static final byte SAP_NOT_ENABLED = 0;
+    private static final byte SAP_CONNECTED = 2;
+    private static final byte SAP_DISCONNECTED = 5;
+
+    private final Client client;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ReentrantLock outLock = new ReentrantLock();
+    private final byte[] sapStates;
+    private final long[] cardBusyUntil; // System.nanoTime() when each card finishes its last APDU; modem thread only
+    private final ConcurrentMap<ServiceCode, AtomicInteger> nextClientIds = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService responder;
+    private final AtomicLong apduCount = new AtomicLong();
+
+    private volatile Card card = DEFAULT_CARD;
+    private volatile long latencyMicros, jitterMicros;
+
+    /**
+     * Make the modem, and a client connected to it. The client is not started.
+     * @param slots how many slots, each with a card present
+     * @param debug an optional stream for the client's debug messages
+     * @throws IOException
+     */
+    public SimulatedModem(int slots, @Nullable PrintStream debug) throws IOException {
+        sapStates = new byte[slots];
+        cardBusyUntil = new long[slots];
+
+        Pipe toModem = Pipe.open();
+        Pipe fromModem = Pipe.open();
+        in = Channels.newInputStream(toModem.source());
+        out = Channels.newOutputStream(fromModem.sink());
+        client = new Client(Channels.newInputStream(fromModem.source()), Channels.newOutputStream(toModem.sink()), debug);
+
+        responder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SimulatedModemResponder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread thread = new Thread(this::run, "SimulatedModem");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the client connected to this modem
+     */
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * Set what answers the APDUs.
+     * @param card
+     */
+    public void setCard(Card card) {
+        this.card = card;
+    }
+
+    /**
+     * Set how long APDUs take. Each takes the latency plus a random part of the jitter, and a card works on one at
+     * a time, so pipelining APDUs hides the QMI round trip but doesn't make the card faster.
+     * @param latency
+     * @param jitter
+     * @param unit
+     */
+    public void setApduLatency(long latency, long jitter, TimeUnit unit) {
+        latencyMicros = unit.toMicros(latency);
+        jitterMicros = unit.toMicros(jitter);
+    }
+
+    /**
+     * @return how many APDUs have been answered
+     */
+    public long getApduCount() {
+        return apduCount.get();
+    }
+
+    private void run() {
+        FrameDecoder decoder = new FrameDecoder(in, false, new AtomicLong(), new AtomicLong());
+        try {
+            for (;;) {
+                handle(decoder.next());
+            }
+        } catch (IOException e) {
+            // the client closed its end
+        } finally {
+            responder.shutdownNow();
+        }
+    }
+
+    private void handle(Message request) throws IOException {
+        final Message response = new Message(request.getServiceCode(), request.getMessageCode());
+        response.setTxId(request.getTxId());
+        response.setClientId(request.getClientId());
+        response.setFlags(request.getServiceCode() == ServiceCode.Control
+                ? Message.CONTROL_FLAG_RESPONSE : Message.FLAG_RESPONSE);
+        response.addTlvBytes(0x02, new byte[4]); // success
+
+        switch (request.getServiceCode()) {
+            case Control:
+                if (request.getMessageCode() == CTL_ALLOCATE_CLIENT_ID) {
+                    byte service = request.getTlv(0x01).getValue()[0];
+                    int clientId = nextClientIds.computeIfAbsent(ServiceCode.fromValue(service),
+                            s -> new AtomicInteger(1)).getAndIncrement();
+                    response.addTlvBytes(0x01, new byte[] { service, (byte) clientId });
+                } else if (request.getMessageCode() == CTL_RELEASE_CLIENT_ID) {
+                    response.addTlv(request.getTlv(0x01));
+                }
+                break;
+
+            case Dms:
+                if (request.getMessageCode() == DMS_GET_MANUFACTURER) {
+                    response.addTlvBytes(0x01, "qmismartcard".getBytes());
+                } else if (request.getMessageCode() == DMS_GET_MODEL) {
+                    response.addTlvBytes(0x01, "SimulatedModem".getBytes());
+                } else if (request.getMessageCode() == DMS_GET_REVISION) {
+                    response.addTlvBytes(0x01, "1".getBytes());
+                }
+                break;
+
+            case Uim:
+                if (handleUim(request, response)) return; // answered later
+                break;
+
+            default:
+                break;
+        }
+        write(response);
+    }
+
+    /**
+     * Fill in the response to a UIM request.
+     * @param request
+     * @param response
+     * @return true if the response will be written later
+     * @throws IOException
+     */
+    private boolean handleUim(Message request, final Message response) throws IOException {
+        switch (request.getMessageCode()) {
+            case UIM_GET_CARD_STATUS: {
+                ByteBuffer bb = ByteBuffer.allocate(8 + 1 + 6 * sapStates.length);
+                bb.put(new byte[8]); // session indexes
+                bb.put((byte) sapStates.length);
+                for (int i = 0; i < sapStates.length; i++) {
+                    bb.put((byte) 1); // present
+                    bb.put(new byte[4]); // UPIN state and retries, error code
+                    bb.put((byte) 0); // no applications
+                }
+                response.addTlvBytes(0x10, bb.array());
+                return false;
+            }
+
+            case SAP_CONNECT: {
+                byte[] sapRequest = request.getTlv(0x01).getValue();
+                int slotIndex = sapRequest[1] - 1;
+                if (slotIndex < 0 || slotIndex >= sapStates.length) {
+                    setError(response, QmiErrorCode.InvalidArgument);
+                    return false;
+                }
+                if (sapRequest[0] == 2) { // status
+                    response.addTlvBytes(0x10, new byte[] { sapStates[slotIndex] });
+                    return false;
+                }
+
+                // the result comes in an indication, after the response
+                sapStates[slotIndex] = (sapRequest[0] == 1) ? SAP_CONNECTED : SAP_DISCONNECTED;
+                write(response);
+                Message indication = new Message(ServiceCode.Uim, SAP_CONNECTION_INDICATION);
+                indication.setClientId(request.getClientId());
+                indication.setTxId(0);
+                indication.setFlags(Message.FLAG_INDICATION);
+                indication.addTlvBytes(0x10, new byte[] { sapStates[slotIndex], sapRequest[1] });
+                write(indication);
+                return true;
+            }
+
+            case SAP_REQUEST: {
+                byte[] sapRequest = request.getTlv(0x01).getValue();
+                byte slot = sapRequest[1];
+                if (slot < 1 || slot > sapStates.length || sapStates[slot - 1] != SAP_CONNECTED) {
+                    setError(response, QmiErrorCode.AccessDenied);
+                    return false;
+                }
+                if (sapRequest[0] == 0) { // ATR
+                    byte[] atr = new byte[1 + ATR.length];
+                    atr[0] = (byte) ATR.length;
+                    System.arraycopy(ATR, 0, atr, 1, ATR.length);
+                    response.addTlvBytes(0x10, atr);
+                    return false;
+                }
+                if (sapRequest[0] != 1) { // reset etc.
+                    return false;
+                }
+
+                byte[] apduTlv = request.getTlv(0x10).getValue();
+                byte[] responseApdu = card.transmit(slot, Arrays.copyOfRange(apduTlv, 2, apduTlv.length));
+                ByteBuffer bb = ByteBuffer.allocate(2 + responseApdu.length);
+                bb.order(ByteOrder.LITTLE_ENDIAN);
+                bb.putShort((short) responseApdu.length);
+                bb.put(responseApdu);
+                response.addTlvBytes(0x11, bb.array());
+                apduCount.incrementAndGet();
+
+                // a card does one APDU at a time, so one sent while it's busy waits its turn
+                long latency = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+                if (jitterMicros > 0) latency += TimeUnit.MICROSECONDS.toNanos(ThreadLocalRandom.current().nextLong(jitterMicros));
+                if (latency == 0) return false;
+                long now = System.nanoTime();
+                long done = Math.max(now, cardBusyUntil[slot - 1]) + latency;
+                cardBusyUntil[slot - 1] = done;
+                responder.schedule(() -> {
+                    try {
+                        write(response);
+                    } catch (IOException e) {
+                        // the client is gone
+                    }
+                }, done - now, TimeUnit.NANOSECONDS);
+                return true;
+            }
+
+            default:
+                return false;
+        }
+    }
+
+    private static void setError(Message response, QmiErrorCode errorCode) {
+        int error = errorCode.value;
+        response.addTlvBytes(0x02, new byte[] { 1, 0, (byte) error, (byte) (error >> 8) });
+    }
+
+    private void write(Message msg) throws IOException {
+        outLock.lock();
+        try {
+            msg.writeToOutput(out, true);
+        } finally {
+            outLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When one transaction passed each stage on its way through the client, in System.nanoTime() terms. Stages
+ * are stamped by different threads, and one that wasn't reached (e.g. no response yet) is left at 0.
+ */
+/* package */ final class TransactionTrace {
+
+    enum Stage {
+        Enqueued,       // sendAsync() put it in the output queue
+        Dequeued,       // the output thread took it
+        Written,        // ... and wrote it
+        Read,           // the response frame was read
+        Decoded,        // ... and decoded
+        Dispatched,     // the response callback was called
+        CallbackDone,   // ... and returned
+        Woken,          // the waiting caller (send(), SapClient.sendApdu()) got the response
+    }
+
+    final long mSequence;
+    final ServiceCode mService;
+    final int mMessageCode;
+    private final AtomicLongArray mTimes = new AtomicLongArray(Stage.values().length);
+    private volatile int mTxId;
+
+    TransactionTrace(long sequence, Message msg) {
+        mSequence = sequence;
+        mService = msg.getServiceCode();
+        mMessageCode = msg.getMessageCode();
+    }
+
+    void stamp(Stage stage) {
+        stamp(stage, System.nanoTime());
+    }
+
+    void stamp(Stage stage, long nanoTime) {
+        mTimes.lazySet(stage.ordinal(), nanoTime);
+    }
+
+    long get(Stage stage) {
+        return mTimes.get(stage.ordinal());
+    }
+
+    void setTxId(int txId) {
+        mTxId = txId;
+    }
+
+    int getTxId() {
+        return mTxId;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi;
+
+import net.scintill.qmi.TransactionTrace.Stage;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the timings of the most recent transactions, from enqueueing the request to waking up the sender, so the
+ * time of a slow one can be pinned on the queue, the modem, or the client. See Client.enableTracing().
+ * <p>
+ * The timings are exported as Chrome trace events, which chrome://tracing and https://ui.perfetto.dev show as a
+ * track per transaction with a slice per stage.
+ */
+public final class TransactionTracer {
+
+    private final AtomicReferenceArray<TransactionTrace> mTraces;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final long mEpoch = System.nanoTime();
+
+    /**
+     * @param capacity how many transactions to keep; older ones are dropped
+     */
+    /* package */ TransactionTracer(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        mTraces = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Start tracing a transaction.
+     * @param msg the request
+     * @return its trace
+     */
+    /* package */ TransactionTrace begin(Message msg) {
+        long sequence = mSequence.getAndIncrement();
+        TransactionTrace trace = new TransactionTrace(sequence, msg);
+        mTraces.set((int) (sequence % mTraces.length()), trace);
+        return trace;
+    }
+
+    /**
+     * @return how many transactions are kept
+     */
+    public int getCapacity() {
+        return mTraces.length();
+    }
+
+    /**
+     * @return how many transactions have been traced, including those dropped since
+     */
+    public long getTracedCount() {
+        return mSequence.get();
+    }
+
+    /**
+     * Write the kept transactions to a file, as Chrome trace events.
+     * @param path
+     * @throws IOException
+     */
+    public void writeChromeTrace(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writeChromeTrace(writer);
+        }
+    }
+
+    /**
+     * Write the kept transactions, oldest first, as Chrome trace events (JSON object format). Each transaction is
+     * a nestable async event, with one nested slice per stage it got through.
+     * @param writer
+     * @throws IOException
+     */
+    public void writeChromeTrace(Writer writer) throws IOException {
+        writer.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[\n");
+        writer.write("{\"ph\":\"M\",\"pid\":1,\"name\":\"process_name\",\"args\":{\"name\":\"qmi\"}}");
+
+        long end = mSequence.get();
+        long start = Math.max(0, end - mTraces.length());
+        for (long sequence = start; sequence < end; sequence++) {
+            TransactionTrace trace = mTraces.get((int) (sequence % mTraces.length()));
+            // it may have been replaced since we looked at the sequence
+            if (trace == null || trace.mSequence != sequence) continue;
+            writeTrace(writer, trace);
+        }
+        writer.write("\n]}\n");
+    }
+
+    private void writeTrace(Writer writer, TransactionTrace trace) throws IOException {
+        long begin = trace.get(Stage.Enqueued);
+        if (begin == 0) return;
+
+        long last = begin;
+        for (Stage stage : Stage.values()) {
+            last = Math.max(last, trace.get(stage));
+        }
+
+        String name = trace.mService + " " + trace.mMessageCode;
+        String args = "{\"txId\":" + trace.getTxId() + "}";
+        writeEvent(writer, "b", name, trace.mSequence, begin, args);
+        writeSlice(writer, trace, "queued", Stage.Enqueued, Stage.Dequeued);
+        writeSlice(writer, trace, "write", Stage.Dequeued, Stage.Written);
+        writeSlice(writer, trace, "modem", Stage.Written, Stage.Read);
+        writeSlice(writer, trace, "decode", Stage.Read, Stage.Decoded);
+        writeSlice(writer, trace, "dispatch", Stage.Decoded, Stage.Dispatched);
+        writeSlice(writer, trace, "callback", Stage.Dispatched, Stage.CallbackDone);
+        long woken = trace.get(Stage.Woken);
+        if (woken != 0) {
+            // the sender may wake before the callback returns, so this is an instant rather than a slice
+            writeEvent(writer, "n", "woken", trace.mSequence, woken, null);
+        }
+        writeEvent(writer, "e", name, trace.mSequence, last, null);
+    }
+
+    private void writeSlice(Writer writer, TransactionTrace trace, String name, Stage from, Stage to)
+            throws IOException {
+        long begin = trace.get(from), end = trace.get(to);
+        if (begin == 0 || end == 0) return;
+        // the stages are stamped by different threads, so e.g. the response can be read before the output thread
+        // gets to note that the request was written
+        end = Math.max(begin, end);
+        writeEvent(writer, "b", name, trace.mSequence, begin, null);
+        writeEvent(writer, "e", name, trace.mSequence, end, null);
+    }
+
+    private void writeEvent(Writer writer, String phase, String name, long id, long nanoTime, String args)
+            throws IOException {
+        writer.write(",\n{\"ph\":\"" + phase + "\",\"cat\":\"qmi\",\"name\":\"" + name + "\",\"id\":" + id
+                + ",\"pid\":1,\"tid\":1,\"ts\":" + toMicros(nanoTime - mEpoch)
+                + (args != null ? ",\"args\":" + args : "") + "}");
+    }
+
+    /**
+     * @param nanos
+     * @return the time in microseconds, with a fraction, as Chrome traces want
+     */
+    private static String toMicros(long nanos) {
+        long fraction = nanos % 1000;
+        return (nanos / 1000) + "." + (fraction < 10 ? "00" : fraction < 100 ? "0" : "") + fraction;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out transaction IDs, counting separately for each (service, client ID) pair, since that is
+ * the scope in which they must be unique. IDs wrap around within the width the service header
+ * allows: 8 bits for the Control service, 16 bits for others. 0 is never used.
+ */
+final class TxIdAllocator {
+    private final ConcurrentMap<Integer, AtomicInteger> mCounters = new ConcurrentHashMap<>();
+
+    /**
+     * Get the next transaction ID for the service and client. The caller is responsible for
+     * skipping IDs that are still in flight.
+     * @param service
+     * @param clientId
+     * @return the ID
+     */
+    int next(ServiceCode service, int clientId) {
+        int key = (service.value & 0xff) << 8 | (clientId & 0xff);
+        AtomicInteger counter = mCounters.get(key);
+        if (counter == null) {
+            counter = mCounters.computeIfAbsent(key, k -> new AtomicInteger());
+        }
+
+        final int max = maxTxId(service);
+        for (;;) {
+            int prev = counter.get();
+            int next = (prev >= max) ? 1 : prev + 1;
+            if (counter.compareAndSet(prev, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * @param service
+     * @return the largest transaction ID that can be sent to the service
+     */
+    static int maxTxId(ServiceCode service) {
+        return (service == ServiceCode.Control) ? 0xff : 0xffff;
+    }
+}
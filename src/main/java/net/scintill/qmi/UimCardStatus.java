@@ -0,0 +1,226 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache of the UIM card status of each slot. It is seeded by a get-card-status query, then kept current by
+ * card status indications, so reading it does not involve the modem.
+ */
+public class UimCardStatus implements MessageCallback {
+
+    private final Client qmiClient;
+    // index 0 is slot 1
+    private volatile CardState[] cardStates = new CardState[0];
+    private long generation = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // message codes
+    private static final int UIM_GET_CARD_STATUS = 0x2f;
+    private static final int UIM_CARD_STATUS_INDICATION = 0x32;
+
+    public enum CardState {
+        Absent,
+        Present,
+        Error,
+        Unknown;
+
+        public static CardState fromInt(int value) {
+            return (value >= 0 && value < Unknown.ordinal()) ? CardState.values()[value] : Unknown;
+        }
+    }
+
+    public UimCardStatus(Client qmiClient) {
+        this.qmiClient = qmiClient;
+        qmiClient.registerForIndications(this);
+        qmiClient.addRecoveryListener(() -> {
+            try {
+                refresh();
+            } catch (QmiException e) {
+                // keep the old states until an indication arrives
+            }
+        });
+    }
+
+    /**
+     * Query the modem for the card status, and update the cache.
+     * @throws QmiException
+     */
+    public void refresh() throws QmiException {
+        Message msg = new Message(ServiceCode.Uim, UIM_GET_CARD_STATUS);
+        msg.setPriority(Message.Priority.Management);
+        Tlv tlv = qmiClient.send(msg).getTlv(0x10);
+        if (tlv == null) {
+            throw new QmiException("card status TLV not returned");
+        }
+        CardState[] states = parseCardStatusTlv(tlv);
+        if (states == null) {
+            throw new QmiException("invalid card status TLV");
+        }
+        update(states);
+    }
+
+    /**
+     * @return the number of slots the modem reported
+     */
+    public int getSlotCount() {
+        return cardStates.length;
+    }
+
+    /**
+     * Get the cached state of the card in a slot.
+     * @param slot slot number, starting at 1
+     * @return the state, or Unknown if the slot hasn't been reported
+     */
+    public CardState getCardState(int slot) {
+        CardState[] states = cardStates;
+        return (slot >= 1 && slot <= states.length) ? states[slot - 1] : CardState.Unknown;
+    }
+
+    public boolean isCardPresent(int slot) {
+        return getCardState(slot) == CardState.Present;
+    }
+
+    /**
+     * Get a counter that increases whenever a card state changes.
+     * @return the counter
+     */
+    public long getGeneration() {
+        lock.lock();
+        try {
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a card state changes after the given generation.
+     * @param sinceGeneration a value from getGeneration()
+     * @param timeout in ms, or 0 for infinite
+     * @return false if timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitChange(long sinceGeneration, long timeout) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (generation == sinceGeneration) {
+                if (timeout == 0) {
+                    changed.await();
+                } else {
+                    if (remaining <= 0) return false;
+                    remaining = changed.awaitNanos(remaining);
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a card is present or absent in the slot.
+     * @param slot slot number, starting at 1
+     * @param present true to wait for presence, false for absence
+     * @param timeout in ms, or 0 for infinite
+     * @return false if timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitCardPresent(int slot, boolean present, long timeout) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (isCardPresent(slot) != present) {
+                if (timeout == 0) {
+                    changed.await();
+                } else {
+                    if (remaining <= 0) return false;
+                    remaining = changed.awaitNanos(remaining);
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void update(CardState[] states) {
+        lock.lock();
+        try {
+            if (!Arrays.equals(states, cardStates)) {
+                cardStates = states;
+                generation++;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onReceive(Message msg) {
+        if (msg.getServiceCode() == ServiceCode.Uim && msg.getMessageCode() == UIM_CARD_STATUS_INDICATION) {
+            Tlv tlv = msg.getTlv(0x10);
+            if (tlv != null) {
+                CardState[] states = parseCardStatusTlv(tlv);
+                if (states != null) {
+                    update(states);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse the card states out of a card status TLV (the same in the query response and the indication).
+     * @param tlv
+     * @return the state of each card, or null if the TLV is malformed
+     */
+    private static CardState[] parseCardStatusTlv(Tlv tlv) {
+        ByteBuffer bb = ByteBuffer.wrap(tlv.getValue());
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            bb.position(8); // primary/secondary GW/1x session indexes
+            CardState[] states = new CardState[bb.get() & 0xff];
+            for (int i = 0; i < states.length; i++) {
+                states[i] = CardState.fromInt(bb.get() & 0xff);
+                skip(bb, 4); // UPIN state, UPIN retries, UPUK retries, error code
+                int appCount = bb.get() & 0xff;
+                for (int app = 0; app < appCount; app++) {
+                    skip(bb, 6); // type, state, personalization state/feature/retries/unblock retries
+                    skip(bb, bb.get() & 0xff); // AID
+                    skip(bb, 7); // UPIN replaces PIN1, PIN1 state/retries, PUK1 retries, PIN2 state/retries, PUK2 retries
+                }
+            }
+            return states;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void skip(ByteBuffer bb, int count) {
+        bb.position(bb.position() + count);
+    }
+}
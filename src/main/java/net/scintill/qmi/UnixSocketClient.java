@@ -0,0 +1,41 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A QMI client over a Unix domain socket, for attaching to a QmiProxy.
+ */
+public class UnixSocketClient extends Client {
+
+    /**
+     * Construct a QMI client connected to a QmiProxy.
+     * @param socketPath path to the proxy's socket
+     * @param debug debug stream
+     * @throws IOException
+     */
+    public UnixSocketClient(String socketPath, PrintStream debug) throws IOException {
+        this(UnixSockets.connect(socketPath), debug);
+    }
+
+    private UnixSocketClient(SocketChannel channel, PrintStream debug) throws IOException {
+        super(UnixSockets.inputStream(channel), UnixSockets.outputStream(channel), debug);
+    }
+}
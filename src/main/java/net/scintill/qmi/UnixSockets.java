@@ -0,0 +1,202 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.UserPrincipal;
+
+/**
+ * Unix domain sockets (Java 16+), reached reflectively so the code still builds for Java 8.
+ */
+public final class UnixSockets {
+
+    // file type bits of a stat mode
+    private static final int S_IFMT = 0170000, S_IFSOCK = 0140000;
+
+    private UnixSockets() {}
+
+    /**
+     * Connect to a Unix domain socket.
+     * @param path the socket path
+     * @return the connected channel
+     * @throws IOException including if the VM does not support Unix domain sockets
+     */
+    public static SocketChannel connect(String path) throws IOException {
+        return connect(path, null);
+    }
+
+    /**
+     * Connect to a Unix domain socket, from a given local path.
+     * @param path the socket path
+     * @param localPath the path to bind our end to (any socket already there is removed), or null for none
+     * @return the connected channel
+     * @throws IOException including if the VM does not support Unix domain sockets, or something other than a
+     * socket is at localPath
+     */
+    public static SocketChannel connect(String path, @Nullable String localPath) throws IOException {
+        SocketChannel channel = (SocketChannel) open(SocketChannel.class);
+        if (localPath != null) {
+            removeStaleSocket(localPath);
+            channel.bind(address(localPath));
+        }
+        channel.connect(address(path));
+        return channel;
+    }
+
+    /**
+     * Listen on a Unix domain socket, which only our user may connect to. Any socket already at the path
+     * (left by an earlier process) is removed first.
+     * @param path the socket path
+     * @return the listening channel
+     * @throws IOException including if the VM does not support Unix domain sockets, or something other than a
+     * socket is at the path
+     */
+    public static ServerSocketChannel bind(String path) throws IOException {
+        ServerSocketChannel channel = (ServerSocketChannel) open(ServerSocketChannel.class);
+        try {
+            removeStaleSocket(path);
+            channel.bind(address(path));
+            Files.setPosixFilePermissions(Paths.get(path), PrivateFiles.OWNER_ONLY_FILE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Get the user on the other end of a connected socket (SO_PEERCRED, Java 16+).
+     * @param channel
+     * @return the peer's user, or null if the VM can't tell
+     */
+    @Nullable
+    public static UserPrincipal peerUser(SocketChannel channel) {
+        try {
+            SocketOption<?> peerCred = (SocketOption<?>) Class.forName("jdk.net.ExtendedSocketOptions").getField("SO_PEERCRED").get(null);
+            Object principal = channel.getOption(peerCred);
+            return (UserPrincipal) principal.getClass().getMethod("user").invoke(principal);
+        } catch (ReflectiveOperationException | UnsupportedOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remove a socket file, but refuse to remove anything else that's at the path, like a file someone has
+     * tricked us into passing.
+     * @param path
+     * @throws IOException if something other than a socket is there
+     */
+    private static void removeStaleSocket(String path) throws IOException {
+        Path file = Paths.get(path);
+        int mode;
+        try {
+            mode = (Integer) Files.getAttribute(file, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if ((mode & S_IFMT) != S_IFSOCK) {
+            throw new IOException(path+" is in the way, and is not a socket");
+        }
+        Files.delete(file);
+    }
+
+    private static Object open(Class<?> channelClass) throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return channelClass.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new IOException("Unix domain sockets are not supported by this VM (Java 16+ is needed)", e);
+        }
+    }
+
+    private static SocketAddress address(String path) throws IOException {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets are not supported by this VM (Java 16+ is needed)", e);
+        }
+    }
+
+    /**
+     * Get an input stream reading from a blocking channel. Unlike Channels.newInputStream(), reading does not
+     * hold a lock that writers also need, so one thread can block reading while another writes.
+     * @param channel
+     * @return the stream
+     */
+    public static InputStream inputStream(final SocketChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Get an output stream writing to a blocking channel. See inputStream().
+     * @param channel
+     * @return the stream
+     */
+    public static OutputStream outputStream(final SocketChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
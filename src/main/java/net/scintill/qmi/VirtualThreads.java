@@ -0,0 +1,56 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (Java 21+) from code that is still built for Java 8.
+ * The lookup is done reflectively, so on older VMs this just reports that they are unavailable.
+ */
+public final class VirtualThreads {
+    private static final ThreadFactory sFactory = lookupFactory();
+
+    private VirtualThreads() {}
+
+    /**
+     * @return true if the running VM can create virtual threads
+     */
+    public static boolean isSupported() {
+        return sFactory != null;
+    }
+
+    /**
+     * Get a factory creating virtual threads.
+     * @return the factory, or null if the VM does not support virtual threads
+     */
+    @Nullable
+    public static ThreadFactory factory() {
+        return sFactory;
+    }
+
+    private static ThreadFactory lookupFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not available (pre-21, or preview not enabled)
+            return null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi;
+
+/**
+ * How the output thread waits for messages to send.
+ */
+public enum WaitStrategy {
+    /** Wait on a lock condition. Cheapest on CPU. */
+    Block,
+    /** Park the thread, and have producers unpark it directly. */
+    Park,
+    /** Busy-poll for a while before parking. Lowest wake-up latency, at the cost of some CPU. */
+    SpinThenPark,
+}
@@ -0,0 +1,393 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi.smartcard;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.smartcardio.CommandAPDU;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms by CLA/INS, and counts of status words, for the APDUs sent to one slot.
+ * <p>
+ * Recording is a map lookup and a few atomic increments, so it is always on. The histograms have four buckets per
+ * power of two, so the percentiles are within 25%.
+ */
+public final class ApduStats implements ApduStatsMXBean {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // up to 2^31 us (35 minutes), which no APDU gets near
+    private static final int BUCKETS = 32 * SUB_BUCKETS;
+    // ms between writes of the statistics file
+    private static final int DEFAULT_STATS_INTERVAL = 60000;
+
+    private final int slot;
+    private final LongSupplier accessDeniedCount;
+    private final ConcurrentMap<Integer, Histogram> commands = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, LongAdder> statusWords = new ConcurrentHashMap<>();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * @param slot slot number, starting at 1
+     * @param accessDeniedCount where to get the count of made-up 9804 responses
+     */
+    /* package */ ApduStats(int slot, LongSupplier accessDeniedCount) {
+        this.slot = slot;
+        this.accessDeniedCount = accessDeniedCount;
+    }
+
+    /**
+     * Record an APDU that got a response.
+     * @param commandApdu
+     * @param sw the status word of the response
+     * @param nanos how long it took
+     */
+    /* package */ void record(CommandAPDU commandApdu, int sw, long nanos) {
+        Integer key = (commandApdu.getCLA() << 8) | commandApdu.getINS();
+        Histogram histogram = commands.get(key);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = commands.putIfAbsent(key, newHistogram);
+            if (histogram == null) histogram = newHistogram;
+        }
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+
+        LongAdder count = statusWords.get(sw);
+        if (count == null) {
+            LongAdder newCount = new LongAdder();
+            count = statusWords.putIfAbsent(sw, newCount);
+            if (count == null) count = newCount;
+        }
+        count.increment();
+    }
+
+    /**
+     * Record an APDU that failed without a response.
+     */
+    /* package */ void recordError() {
+        errors.increment();
+    }
+
+    @Override
+    public int getSlot() {
+        return slot;
+    }
+
+    @Override
+    public long getApduCount() {
+        long total = 0;
+        for (LongAdder count : statusWords.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getAccessDeniedCount() {
+        return accessDeniedCount.getAsLong();
+    }
+
+    @Override
+    public Map<String, Long> getStatusWordCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : statusWords.entrySet()) {
+            counts.put(String.format("%04X", entry.getKey()), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public List<CommandStats> getCommandStats() {
+        List<CommandStats> stats = new ArrayList<>(commands.size());
+        for (Map.Entry<Integer, Histogram> entry : new TreeMap<>(commands).entrySet()) {
+            stats.add(new CommandStats(entry.getKey(), entry.getValue()));
+        }
+        return stats;
+    }
+
+    @Override
+    public void reset() {
+        // recording carries on meanwhile, so a few APDUs may land either side of this
+        commands.clear();
+        statusWords.clear();
+        errors.reset();
+    }
+
+    /**
+     * Latency statistics of one CLA/INS.
+     */
+    public static final class CommandStats {
+        private final int cla, ins;
+        private final long count, meanMicros, p50Micros, p90Micros, p99Micros, maxMicros;
+
+        private CommandStats(int key, Histogram histogram) {
+            cla = key >> 8;
+            ins = key & 0xff;
+            // take the buckets once, so the numbers agree with each other
+            long[] buckets = histogram.snapshot();
+            long total = 0;
+            for (long bucket : buckets) total += bucket;
+            count = total;
+            meanMicros = (total == 0) ? 0 : histogram.sum.sum() / total;
+            maxMicros = histogram.max.get();
+            p50Micros = Math.min(maxMicros, percentile(buckets, total, 0.50));
+            p90Micros = Math.min(maxMicros, percentile(buckets, total, 0.90));
+            p99Micros = Math.min(maxMicros, percentile(buckets, total, 0.99));
+        }
+
+        /**
+         * @return CLA and INS in hex, e.g. A0B0
+         */
+        public String getCommand() {
+            return String.format("%02X%02X", cla, ins);
+        }
+
+        public int getCla() {
+            return cla;
+        }
+
+        public int getIns() {
+            return ins;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP90Micros() {
+            return p90Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+    }
+
+    private static final class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final LongAdder sum = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            buckets.incrementAndGet(bucketOf(micros));
+            sum.add(micros);
+            long oldMax;
+            while (micros > (oldMax = max.get()) && !max.compareAndSet(oldMax, micros)) {
+                // lost a race with another slower APDU; try again
+            }
+        }
+
+        long[] snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+            }
+            return copy;
+        }
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) return (int) Math.max(0, micros);
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, exponent * SUB_BUCKETS + subBucket);
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS;
+        int subBucket = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private static long percentile(long[] buckets, long total, double fraction) {
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) return bucketUpperBound(i);
+        }
+        return 0;
+    }
+
+    /**
+     * Register the statistics with the platform MBean server, and start dumping them to a file if configured to.
+     * Neither is available everywhere (e.g. Android), so failures are ignored.
+     * @param allStats the statistics of each slot
+     * @param config
+     */
+    /* package */ static void publish(final List<ApduStats> allStats, ProviderConfig config) {
+        try {
+            for (ApduStats stats : allStats) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+                        new ObjectName("net.scintill.qmi:type=ApduStats,slot=" + stats.slot));
+            }
+        } catch (JMException | LinkageError e) {
+            // no JMX
+        }
+
+        String file = config.getString("statsFile");
+        if (file == null) return;
+        final Path path = Paths.get(file);
+        final boolean json = file.endsWith(".json");
+        long interval = config.getInt("statsInterval", DEFAULT_STATS_INTERVAL);
+        if (interval <= 0) {
+            System.err.println("qmismartcard.statsInterval must be positive, not " + interval
+                    + "; using " + DEFAULT_STATS_INTERVAL);
+            interval = DEFAULT_STATS_INTERVAL;
+        }
+
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "QmiStats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleWithFixedDelay(() -> {
+            try {
+                dump(allStats, path, json);
+            } catch (IOException e) {
+                System.err.println("unable to write APDU statistics to " + path + ": " + e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        // catch what happened since the last one
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                dump(allStats, path, json);
+            } catch (IOException e) {
+                // too late to do anything about it
+            }
+        }, "QmiStatsShutdown"));
+    }
+
+    /**
+     * Write the statistics to a file, replacing it in one go so readers don't see half of it.
+     * @param allStats
+     * @param path
+     * @param json true for JSON, false for CSV
+     * @throws IOException
+     */
+    /* package */ static void dump(List<ApduStats> allStats, Path path, boolean json) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                if (json) {
+                    writeJson(allStats, writer);
+                } else {
+                    writeCsv(allStats, writer);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Write the statistics as CSV, one row per command and per status word.
+     * @param allStats
+     * @param writer
+     * @throws IOException
+     */
+    public static void writeCsv(List<ApduStats> allStats, Writer writer) throws IOException {
+        writer.write("slot,kind,key,count,mean_us,p50_us,p90_us,p99_us,max_us\n");
+        for (ApduStats stats : allStats) {
+            for (CommandStats command : stats.getCommandStats()) {
+                writer.write(stats.slot + ",command," + command.getCommand() + "," + command.count + ","
+                        + command.meanMicros + "," + command.p50Micros + "," + command.p90Micros + ","
+                        + command.p99Micros + "," + command.maxMicros + "\n");
+            }
+            for (Map.Entry<String, Long> sw : stats.getStatusWordCounts().entrySet()) {
+                writer.write(stats.slot + ",sw," + sw.getKey() + "," + sw.getValue() + ",,,,,\n");
+            }
+            writer.write(stats.slot + ",accessDenied,," + stats.getAccessDeniedCount() + ",,,,,\n");
+            writer.write(stats.slot + ",error,," + stats.getErrorCount() + ",,,,,\n");
+        }
+    }
+
+    /**
+     * Write the statistics as JSON, an object per slot.
+     * @param allStats
+     * @param writer
+     * @throws IOException
+     */
+    public static void writeJson(List<ApduStats> allStats, Writer writer) throws IOException {
+        writer.write("{\"time\":" + System.currentTimeMillis() + ",\"slots\":[");
+        String slotSeparator = "";
+        for (ApduStats stats : allStats) {
+            writer.write(slotSeparator + "\n{\"slot\":" + stats.slot + ",\"apdus\":" + stats.getApduCount()
+                    + ",\"errors\":" + stats.getErrorCount() + ",\"accessDenied\":" + stats.getAccessDeniedCount()
+                    + ",\"commands\":{");
+            String separator = "";
+            for (CommandStats command : stats.getCommandStats()) {
+                writer.write(separator + "\"" + command.getCommand() + "\":{\"count\":" + command.count
+                        + ",\"mean_us\":" + command.meanMicros + ",\"p50_us\":" + command.p50Micros
+                        + ",\"p90_us\":" + command.p90Micros + ",\"p99_us\":" + command.p99Micros
+                        + ",\"max_us\":" + command.maxMicros + "}");
+                separator = ",";
+            }
+            writer.write("},\"statusWords\":{");
+            separator = "";
+            for (Map.Entry<String, Long> sw : stats.getStatusWordCounts().entrySet()) {
+                writer.write(separator + "\"" + sw.getKey() + "\":" + sw.getValue());
+                separator = ",";
+            }
+            writer.write("}}");
+            slotSeparator = ",";
+        }
+        writer.write("\n]}\n");
+    }
+}
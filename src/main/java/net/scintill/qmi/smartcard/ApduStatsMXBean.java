@@ -0,0 +1,55 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi.smartcard;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * APDU statistics of one slot, as seen over JMX (as net.scintill.qmi:type=ApduStats,slot=N).
+ */
+public interface ApduStatsMXBean {
+    int getSlot();
+
+    /**
+     * @return how many APDUs got a response
+     */
+    long getApduCount();
+
+    /**
+     * @return how many APDUs failed without a response
+     */
+    long getErrorCount();
+
+    /**
+     * @return how many of the 9804 responses were made up by SapClient, because the QMI service refused the APDU
+     */
+    long getAccessDeniedCount();
+
+    /**
+     * @return response counts by status word, in hex
+     */
+    Map<String, Long> getStatusWordCounts();
+
+    /**
+     * @return latency statistics by CLA/INS
+     */
+    List<ApduStats.CommandStats> getCommandStats();
+
+    void reset();
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi.smartcard;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A card channel that can have several APDUs outstanding. QmiSmartcardCard's basic channel implements this;
+ * get it with a cast, or with from().
+ */
+public interface AsyncCardChannel {
+
+    /**
+     * Send an APDU without waiting for the response. The futures of a channel complete in the order the APDUs
+     * were sent, even when a later one fails first.
+     * <p>
+     * Futures may be completed on the QMI input thread, so actions depending on them must not block (use the
+     * *Async methods of CompletableFuture to run them elsewhere).
+     * @param command
+     * @return a future for the response, which fails with a CardException
+     */
+    CompletableFuture<ResponseAPDU> transmitAsync(CommandAPDU command);
+
+    /**
+     * Get the async view of a channel.
+     * @param channel
+     * @return the channel as an AsyncCardChannel
+     * @throws IllegalArgumentException if it isn't one
+     */
+    static AsyncCardChannel from(CardChannel channel) {
+        if (channel instanceof AsyncCardChannel) {
+            return (AsyncCardChannel) channel;
+        }
+        throw new IllegalArgumentException("not an async channel: "+channel);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi.smartcard;
+
+import com.google.common.io.BaseEncoding;
+
+import javax.annotation.Nullable;
+
+/**
+ * One authentication challenge: a RAND, and for UMTS authentication, an AUTN.
+ */
+public final class AuthChallenge {
+
+    private static final int RAND_LENGTH = 16;
+    private static final int AUTN_LENGTH = 16;
+
+    private final byte[] rand;
+    private final byte[] autn;
+
+    /**
+     * @param rand 16 bytes
+     * @param autn 16 bytes, or null for GSM authentication
+     */
+    public AuthChallenge(byte[] rand, @Nullable byte[] autn) {
+        if (rand.length != RAND_LENGTH) throw new IllegalArgumentException("RAND must be 16 bytes");
+        if (autn != null && autn.length != AUTN_LENGTH) throw new IllegalArgumentException("AUTN must be 16 bytes");
+        this.rand = rand.clone();
+        this.autn = (autn != null) ? autn.clone() : null;
+    }
+
+    /**
+     * Parse a challenge from a line of text: the RAND in hex, optionally followed by a comma and the AUTN.
+     * @param line
+     * @return the challenge
+     * @throws IllegalArgumentException if the line is not a challenge
+     */
+    public static AuthChallenge parse(String line) {
+        String[] fields = line.trim().split("\\s*,\\s*");
+        if (fields.length > 2) throw new IllegalArgumentException("too many fields: " + line);
+        BaseEncoding hex = BaseEncoding.base16();
+        return new AuthChallenge(hex.decode(fields[0].toUpperCase()),
+                (fields.length > 1) ? hex.decode(fields[1].toUpperCase()) : null);
+    }
+
+    public byte[] getRand() {
+        return rand.clone();
+    }
+
+    /**
+     * @return the AUTN, or null
+     */
+    @Nullable
+    public byte[] getAutn() {
+        return (autn != null) ? autn.clone() : null;
+    }
+
+    /* package */ byte[] rand() {
+        return rand;
+    }
+
+    /* package */ byte[] autn() {
+        return autn;
+    }
+}
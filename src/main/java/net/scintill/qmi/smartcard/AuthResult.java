@@ -0,0 +1,114 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi.smartcard;
+
+import javax.annotation.Nullable;
+
+/**
+ * What the card answered to one AuthChallenge. Which values are present depends on the kind of authentication
+ * and the status: GSM authentication gives SRES and Kc, UMTS authentication gives RES, CK and IK (and Kc, if the
+ * card supports GSM access), and a UMTS synchronization failure gives AUTS.
+ */
+public final class AuthResult {
+
+    public enum Status {
+        Success,
+        /** UMTS only: the sequence number in the AUTN was not accepted; see getAuts() */
+        SyncFailure,
+        /** UMTS only: the MAC in the AUTN was wrong (98 62) */
+        MacFailure,
+        /** the card returned some other status word, or didn't answer; see getSw() */
+        Error,
+    }
+
+    private final long index;
+    private final AuthChallenge challenge;
+    private final Status status;
+    private final int sw;
+    private final byte[] sres, kc, res, ck, ik, auts;
+
+    /* package */ AuthResult(long index, AuthChallenge challenge, Status status, int sw,
+                             byte[] sres, byte[] kc, byte[] res, byte[] ck, byte[] ik, byte[] auts) {
+        this.index = index;
+        this.challenge = challenge;
+        this.status = status;
+        this.sw = sw;
+        this.sres = sres;
+        this.kc = kc;
+        this.res = res;
+        this.ck = ck;
+        this.ik = ik;
+        this.auts = auts;
+    }
+
+    /* package */ static AuthResult error(long index, AuthChallenge challenge, int sw) {
+        return new AuthResult(index, challenge, Status.Error, sw, null, null, null, null, null, null);
+    }
+
+    /**
+     * @return the challenge's position in the input, counting those skipped when resuming
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    public AuthChallenge getChallenge() {
+        return challenge;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the final status word, or 0 if the card didn't answer
+     */
+    public int getSw() {
+        return sw;
+    }
+
+    @Nullable
+    public byte[] getSres() {
+        return sres;
+    }
+
+    @Nullable
+    public byte[] getKc() {
+        return kc;
+    }
+
+    @Nullable
+    public byte[] getRes() {
+        return res;
+    }
+
+    @Nullable
+    public byte[] getCk() {
+        return ck;
+    }
+
+    @Nullable
+    public byte[] getIk() {
+        return ik;
+    }
+
+    @Nullable
+    public byte[] getAuts() {
+        return auts;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi.smartcard;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes results to a CSV file, appending to what's there:
+ * index,rand,status,sw,sres,kc,res,ck,ik,auts
+ */
+public class AuthResultFile implements AuthResultSink {
+
+    private static final String HEADER = "index,rand,status,sw,sres,kc,res,ck,ik,auts\n";
+    private static final BaseEncoding HEX = BaseEncoding.base16();
+
+    private final FileChannel channel;
+    private OutputStream out;
+
+    public AuthResultFile(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        openOutput();
+    }
+
+    private void openOutput() throws IOException {
+        // buffered here, and flushed to the channel by sync()
+        out = new BufferedOutputStream(Channels.newOutputStream(channel), 65536);
+        if (channel.position() == 0) {
+            out.write(HEADER.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Override
+    public void write(AuthResult result) throws IOException {
+        StringBuilder sb = new StringBuilder(160);
+        sb.append(result.getIndex()).append(',');
+        sb.append(HEX.encode(result.getChallenge().rand())).append(',');
+        sb.append(result.getStatus()).append(',');
+        sb.append(String.format("%04X", result.getSw()));
+        for (byte[] value : new byte[][] { result.getSres(), result.getKc(), result.getRes(), result.getCk(),
+                result.getIk(), result.getAuts() }) {
+            sb.append(',');
+            if (value != null) sb.append(HEX.encode(value));
+        }
+        sb.append('\n');
+        out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public long sync() throws IOException {
+        out.flush();
+        channel.force(false);
+        return channel.position();
+    }
+
+    @Override
+    public void truncate(long position) throws IOException {
+        out.flush();
+        channel.truncate(position);
+        channel.position(position);
+        openOutput();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
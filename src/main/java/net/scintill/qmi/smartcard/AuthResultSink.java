@@ -0,0 +1,44 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi.smartcard;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where AuthenticationEngine writes results, in input order. To support resuming, a sink can make what it has
+ * been given durable, and say how far it got, so a later run can throw away anything written after that.
+ */
+public interface AuthResultSink extends Closeable {
+
+    void write(AuthResult result) throws IOException;
+
+    /**
+     * Make everything written so far durable.
+     * @return the position after the last result, for truncate()
+     * @throws IOException
+     */
+    long sync() throws IOException;
+
+    /**
+     * Throw away anything written after the given position, by a run that stopped before checkpointing it.
+     * @param position a value returned by sync(), or 0 for everything
+     * @throws IOException
+     */
+    void truncate(long position) throws IOException;
+}
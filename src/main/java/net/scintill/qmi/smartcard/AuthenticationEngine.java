@@ -0,0 +1,589 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi.smartcard;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a stream of authentication challenges against a card, as fast as the card goes, and writes the results to
+ * a sink in input order.
+ * <p>
+ * The application that does the authentication (DF GSM, or the USIM) is selected first, and again if the card
+ * answers as if it no longer is. Each challenge is one exchange with the card: the command, and the GET RESPONSE
+ * its status word calls for, which is sent from the response callback (see QmiSmartcardCard.setT0FollowUps()).
+ * The next challenge is sent as soon as an exchange finishes, while the results are written to the sink on
+ * another thread. A card that answers with the data straight away (T=1, or a modem that does the GET RESPONSE
+ * itself) needs no follow-ups, and then several challenges can be in flight at once; see setT0FollowUps().
+ * <p>
+ * With a checkpoint file, the position in the input and in the sink are saved every so often, and a run that is
+ * started again with the same input, sink and checkpoint file carries on from the last checkpoint.
+ */
+public class AuthenticationEngine {
+
+    public enum Mode {
+        /** RUN GSM ALGORITHM, in DF GSM of a SIM */
+        Gsm,
+        /** AUTHENTICATE in the GSM context, in the USIM */
+        UsimGsm,
+        /** AUTHENTICATE in the 3G context, in the USIM; the challenges need an AUTN */
+        Umts,
+    }
+
+    public static final int DEFAULT_WINDOW = 1;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1000;
+
+    // the USIM application's RID and PIX application code; cards select it by this partial AID
+    private static final byte[] USIM_AID_PREFIX = { (byte) 0xa0, 0x00, 0x00, 0x00, (byte) 0x87, 0x10, 0x02 };
+    private static final byte[] MF = { 0x3f, 0x00 };
+    private static final byte[] DF_GSM = { 0x7f, 0x20 };
+
+    private static final int INS_SELECT = 0xa4;
+    private static final int INS_RUN_GSM_ALGORITHM = 0x88; // AUTHENTICATE has the same INS
+    private static final int P2_GSM_CONTEXT = 0x80;
+    private static final int P2_3G_CONTEXT = 0x81;
+    private static final int TAG_AUTH_SUCCESS = 0xdb;
+    private static final int TAG_SYNC_FAILURE = 0xdc;
+    private static final int SW_MAC_FAILURE = 0x9862;
+
+    // status words suggesting that the application isn't selected any more
+    private static final int[] RESELECT_SWS = {
+            0x6985, // conditions of use not satisfied
+            0x6986, // command not allowed
+            0x6a82, // file not found
+            0x6a88, // referenced data not found
+            0x6d00, // INS not supported
+            0x6e00, // CLA not supported
+            0x9400, // GSM: no EF selected
+    };
+
+    // results written but not yet checkpointed, and results waiting for earlier ones, are bounded by this
+    private static final int MAX_BUFFERED_RESULTS = 4096;
+
+    private final Card card;
+    private final Mode mode;
+    private byte[] aid = USIM_AID_PREFIX;
+    private int window = DEFAULT_WINDOW;
+    private boolean t0FollowUps = true;
+    private Path checkpointFile;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    /**
+     * @param card the card to authenticate with; a QmiSmartcardCard will have T=0 follow-ups turned on while
+     *             running, and others are expected to do them themselves (as the PC/SC provider does). Only a card
+     *             whose basic channel is an AsyncCardChannel can have several challenges in flight; others are
+     *             sent one at a time with transmit(), whatever the window.
+     * @param mode
+     */
+    public AuthenticationEngine(Card card, Mode mode) {
+        this.card = card;
+        this.mode = mode;
+    }
+
+    /**
+     * Set the AID of the USIM application, for the USIM modes. By default, it's selected by the partial AID
+     * A0000000871002.
+     * @param aid
+     */
+    public void setAid(byte[] aid) {
+        this.aid = aid.clone();
+    }
+
+    /**
+     * Set how many exchanges may be in flight at once. More than 1 needs T=0 follow-ups turned off: a GET RESPONSE
+     * must follow its command directly, which another command already on its way would get in the way of.
+     * @param window
+     */
+    public void setWindow(int window) {
+        if (window < 1) throw new IllegalArgumentException("window must be at least 1");
+        this.window = window;
+    }
+
+    /**
+     * Set whether the card's answers need T=0 follow-ups (a GET RESPONSE after 61xx or 9Fxx), which is so unless
+     * the card uses T=1, or the modem does the GET RESPONSE itself. Without them, a challenge whose answer needed
+     * one gets an Error result with that status word. The default is on.
+     * @param t0FollowUps
+     */
+    public void setT0FollowUps(boolean t0FollowUps) {
+        this.t0FollowUps = t0FollowUps;
+    }
+
+    /**
+     * Save progress to this file, and resume from it if it exists.
+     * @param checkpointFile
+     */
+    public void setCheckpointFile(Path checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * @param checkpointInterval how many results between checkpoints
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval < 1) throw new IllegalArgumentException("interval must be at least 1");
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Run the challenges, and write their results to the sink. With a checkpoint file, challenges up to the last
+     * checkpoint are skipped, and the sink is truncated to where it was then (or emptied, if there is none yet).
+     * @param challenges
+     * @param sink
+     * @return how many results were written by this run
+     * @throws CardException if the application can't be selected
+     * @throws IOException if the sink or checkpoint file fails
+     * @throws InterruptedException
+     * @throws IllegalStateException if the window is over 1 with T=0 follow-ups on
+     */
+    public long run(Iterator<AuthChallenge> challenges, AuthResultSink sink)
+            throws CardException, IOException, InterruptedException {
+        if (window > 1 && t0FollowUps) {
+            throw new IllegalStateException("a window over 1 needs T=0 follow-ups turned off");
+        }
+        long first = 0;
+        if (checkpointFile != null) {
+            Properties checkpoint = new Properties();
+            if (Files.exists(checkpointFile)) {
+                try (InputStream in = Files.newInputStream(checkpointFile)) {
+                    checkpoint.load(in);
+                }
+            }
+            first = Long.parseLong(checkpoint.getProperty("next", "0"));
+            sink.truncate(Long.parseLong(checkpoint.getProperty("position", "0")));
+        }
+        for (long i = 0; i < first && challenges.hasNext(); i++) {
+            challenges.next();
+        }
+
+        QmiSmartcardCard qmiCard = (card instanceof QmiSmartcardCard) ? (QmiSmartcardCard) card : null;
+        boolean cardT0FollowUps = (qmiCard != null) && qmiCard.getT0FollowUps();
+        if (qmiCard != null) qmiCard.setT0FollowUps(t0FollowUps);
+        try {
+            select();
+            return new Run(challenges, sink, first).run();
+        } finally {
+            if (qmiCard != null) qmiCard.setT0FollowUps(cardT0FollowUps);
+        }
+    }
+
+    /**
+     * Select the application. Each SELECT is finished (with its GET RESPONSE) before anything else is sent, so
+     * nothing else may be in flight. Follow-ups are done whatever setT0FollowUps() says, as a GSM SELECT always
+     * needs one.
+     * @throws CardException if selecting fails
+     */
+    private void select() throws CardException {
+        QmiSmartcardCard qmiCard = (card instanceof QmiSmartcardCard) ? (QmiSmartcardCard) card : null;
+        boolean cardT0FollowUps = (qmiCard != null) && qmiCard.getT0FollowUps();
+        if (qmiCard != null) qmiCard.setT0FollowUps(true);
+        try {
+            selectWithFollowUps();
+        } finally {
+            if (qmiCard != null) qmiCard.setT0FollowUps(cardT0FollowUps);
+        }
+    }
+
+    private void selectWithFollowUps() throws CardException {
+        CardChannel channel = card.getBasicChannel();
+        CommandAPDU[] commands = (mode == Mode.Gsm)
+                ? new CommandAPDU[] {
+                        new CommandAPDU(0xa0, INS_SELECT, 0, 0, MF),
+                        new CommandAPDU(0xa0, INS_SELECT, 0, 0, DF_GSM) }
+                // by DF name, first or only occurrence, returning the FCP
+                : new CommandAPDU[] { new CommandAPDU(0x00, INS_SELECT, 0x04, 0x04, aid, 256) };
+        for (CommandAPDU command : commands) {
+            int sw = channel.transmit(command).getSW();
+            if (sw != 0x9000) {
+                throw new CardException(String.format("SELECT failed: %04X", sw));
+            }
+        }
+    }
+
+    private CommandAPDU makeCommand(AuthChallenge challenge) {
+        switch (mode) {
+            case Gsm:
+                return new CommandAPDU(0xa0, INS_RUN_GSM_ALGORITHM, 0, 0, challenge.rand());
+            case UsimGsm:
+                return new CommandAPDU(0x00, INS_RUN_GSM_ALGORITHM, 0, P2_GSM_CONTEXT,
+                        lengthValues(challenge.rand()), 256);
+            case Umts:
+            default:
+                if (challenge.autn() == null) throw new IllegalArgumentException("UMTS authentication needs an AUTN");
+                return new CommandAPDU(0x00, INS_RUN_GSM_ALGORITHM, 0, P2_3G_CONTEXT,
+                        lengthValues(challenge.rand(), challenge.autn()), 256);
+        }
+    }
+
+    private static byte[] lengthValues(byte[]... values) {
+        int length = 0;
+        for (byte[] value : values) length += 1 + value.length;
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (byte[] value : values) {
+            data[offset++] = (byte) value.length;
+            System.arraycopy(value, 0, data, offset, value.length);
+            offset += value.length;
+        }
+        return data;
+    }
+
+    /**
+     * @param index
+     * @param challenge
+     * @param response
+     * @return the result, or null if the application should be selected again
+     */
+    private AuthResult parseResponse(long index, AuthChallenge challenge, ResponseAPDU response) {
+        int sw = response.getSW();
+        for (int reselectSw : RESELECT_SWS) {
+            if (sw == reselectSw) return null;
+        }
+        if (sw == SW_MAC_FAILURE && mode == Mode.Umts) {
+            return new AuthResult(index, challenge, AuthResult.Status.MacFailure, sw,
+                    null, null, null, null, null, null);
+        }
+        if (sw != 0x9000) {
+            return AuthResult.error(index, challenge, sw);
+        }
+
+        byte[] data = response.getData();
+        try {
+            switch (mode) {
+                case Gsm:
+                    if (data.length < 12) break;
+                    return new AuthResult(index, challenge, AuthResult.Status.Success, sw,
+                            Arrays.copyOfRange(data, 0, 4), Arrays.copyOfRange(data, 4, 12), null, null, null, null);
+                case UsimGsm: {
+                    LengthValueReader reader = new LengthValueReader(data, 0);
+                    return new AuthResult(index, challenge, AuthResult.Status.Success, sw,
+                            reader.next(), reader.next(), null, null, null, null);
+                }
+                case Umts: {
+                    if (data.length < 1) break;
+                    LengthValueReader reader = new LengthValueReader(data, 1);
+                    if ((data[0] & 0xff) == TAG_SYNC_FAILURE) {
+                        return new AuthResult(index, challenge, AuthResult.Status.SyncFailure, sw,
+                                null, null, null, null, null, reader.next());
+                    }
+                    if ((data[0] & 0xff) != TAG_AUTH_SUCCESS) break;
+                    byte[] res = reader.next(), ck = reader.next(), ik = reader.next();
+                    byte[] kc = reader.hasNext() ? reader.next() : null; // only with GSM access
+                    return new AuthResult(index, challenge, AuthResult.Status.Success, sw, null, kc, res, ck, ik, null);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // malformed; fall through
+        }
+        return AuthResult.error(index, challenge, sw);
+    }
+
+    private static final class LengthValueReader {
+        private final byte[] data;
+        private int offset;
+
+        LengthValueReader(byte[] data, int offset) {
+            this.data = data;
+            this.offset = offset;
+        }
+
+        boolean hasNext() {
+            return offset < data.length;
+        }
+
+        byte[] next() {
+            int length = data[offset] & 0xff;
+            if (offset + 1 + length > data.length) throw new ArrayIndexOutOfBoundsException();
+            byte[] value = Arrays.copyOfRange(data, offset + 1, offset + 1 + length);
+            offset += 1 + length;
+            return value;
+        }
+    }
+
+    private static final class Attempt {
+        final long index;
+        final AuthChallenge challenge;
+        final boolean retry;
+
+        Attempt(long index, AuthChallenge challenge, boolean retry) {
+            this.index = index;
+            this.challenge = challenge;
+            this.retry = retry;
+        }
+    }
+
+    // marks the end of the results
+    private static final AuthResult END = AuthResult.error(-1, null, 0);
+
+    /**
+     * The state of one run() call.
+     */
+    private final class Run {
+        private final Iterator<AuthChallenge> challenges;
+        private final AuthResultSink sink;
+        private long nextIndex;
+        private final CardChannel channel = card.getBasicChannel();
+
+        // exchanges in flight
+        private final Semaphore inFlight = new Semaphore(window);
+        // results not yet written
+        private final Semaphore buffered = new Semaphore(MAX_BUFFERED_RESULTS);
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final BlockingQueue<Attempt> retries = new LinkedBlockingQueue<>();
+        private final BlockingQueue<AuthResult> results = new LinkedBlockingQueue<>();
+        private volatile IOException sinkFailure;
+        private long written;
+
+        Run(Iterator<AuthChallenge> challenges, AuthResultSink sink, long first) {
+            this.challenges = challenges;
+            this.sink = sink;
+            this.nextIndex = first;
+        }
+
+        long run() throws IOException, InterruptedException {
+            final long first = nextIndex;
+            Thread writer = new Thread(() -> writeResults(first), "AuthResults");
+            writer.setDaemon(true);
+            writer.start();
+
+            try {
+                submit();
+            } finally {
+                results.put(END);
+                writer.join();
+            }
+            if (sinkFailure != null) throw sinkFailure;
+            return written;
+        }
+
+        private void submit() throws InterruptedException {
+            while (sinkFailure == null) {
+                Attempt attempt = retries.poll();
+                if (attempt == null && challenges.hasNext()) {
+                    buffered.acquire();
+                    attempt = new Attempt(nextIndex++, challenges.next(), false);
+                } else if (attempt == null) {
+                    // a retry is pushed before its exchange stops being outstanding, so none can be missed
+                    if (outstanding.get() == 0 && retries.isEmpty()) return;
+                    attempt = retries.poll(10, TimeUnit.MILLISECONDS);
+                    if (attempt == null) continue;
+                }
+
+                inFlight.acquire();
+                if (attempt.retry) {
+                    // with nothing else in flight, and finished before the retry is sent, as a GET RESPONSE must
+                    // follow its command directly
+                    inFlight.acquire(window - 1);
+                    try {
+                        select();
+                    } catch (CardException e) {
+                        // then the retry fails too, and that's what gets reported
+                    } finally {
+                        inFlight.release(window - 1);
+                    }
+                }
+                send(attempt);
+            }
+        }
+
+        private void send(final Attempt attempt) {
+            CommandAPDU command;
+            try {
+                command = makeCommand(attempt.challenge);
+            } catch (IllegalArgumentException e) {
+                inFlight.release();
+                results.add(AuthResult.error(attempt.index, attempt.challenge, 0));
+                return;
+            }
+
+            outstanding.incrementAndGet();
+            CompletableFuture<ResponseAPDU> future;
+            if (channel instanceof AsyncCardChannel) {
+                future = ((AsyncCardChannel) channel).transmitAsync(command);
+            } else {
+                // no pipelining; the exchange is over before the next challenge is looked at
+                future = new CompletableFuture<>();
+                try {
+                    future.complete(channel.transmit(command));
+                } catch (CardException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+            future.whenComplete((response, e) -> {
+                AuthResult result = (e == null) ? parseResponse(attempt.index, attempt.challenge, response)
+                        : AuthResult.error(attempt.index, attempt.challenge, 0);
+                if (result == null && !attempt.retry) {
+                    retries.add(new Attempt(attempt.index, attempt.challenge, true));
+                } else {
+                    // still not selected after selecting again
+                    results.add(result != null ? result
+                            : AuthResult.error(attempt.index, attempt.challenge, response.getSW()));
+                }
+                inFlight.release();
+                outstanding.decrementAndGet();
+            });
+        }
+
+        /**
+         * Write the results in input order, and checkpoint every so often.
+         * @param first the index of the first result
+         */
+        private void writeResults(long first) {
+            // results of retries come in late
+            PriorityQueue<AuthResult> waiting = new PriorityQueue<>(
+                    (a, b) -> Long.compare(a.getIndex(), b.getIndex()));
+            long next = first;
+            try {
+                for (;;) {
+                    AuthResult result = results.take();
+                    if (result == END) break;
+                    waiting.add(result);
+                    while (!waiting.isEmpty() && waiting.peek().getIndex() == next) {
+                        sink.write(waiting.poll());
+                        buffered.release();
+                        next++;
+                        written++;
+                        if (written % checkpointInterval == 0) checkpoint(next);
+                    }
+                }
+                // after a sink failure, there may be gaps, but everything up to next is in order
+                checkpoint(next);
+            } catch (IOException e) {
+                sinkFailure = e;
+                // unblock the submitter
+                buffered.release(MAX_BUFFERED_RESULTS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void checkpoint(long next) throws IOException {
+            long position = sink.sync();
+            if (checkpointFile == null) return;
+
+            Properties checkpoint = new Properties();
+            checkpoint.setProperty("next", Long.toString(next));
+            checkpoint.setProperty("position", Long.toString(position));
+            Path parent = checkpointFile.toAbsolutePath().getParent();
+            Path temp = Files.createTempFile(parent, checkpointFile.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    checkpoint.store(out, "AuthenticationEngine progress");
+                }
+                Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Run the challenges in a file (a RAND, or RAND,AUTN, in hex per line) against the first card present, and
+     * write the results to a CSV file. With a checkpoint file, the run can be stopped and started again.
+     * @param args [--mode=gsm|usim-gsm|umts] [--window=W --no-follow-ups] [--checkpoint=FILE] INPUT OUTPUT
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Mode mode = Mode.Gsm;
+        int window = DEFAULT_WINDOW;
+        boolean t0FollowUps = true;
+        Path checkpointFile = null;
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--mode=")) {
+                String name = arg.substring(7);
+                mode = name.equals("gsm") ? Mode.Gsm : name.equals("usim-gsm") ? Mode.UsimGsm
+                        : name.equals("umts") ? Mode.Umts : null;
+                if (mode == null) usage("unknown mode " + name);
+            } else if (arg.startsWith("--window=")) {
+                window = Integer.parseInt(arg.substring(9));
+            } else if (arg.equals("--no-follow-ups")) {
+                t0FollowUps = false;
+            } else if (arg.startsWith("--checkpoint=")) {
+                checkpointFile = Paths.get(arg.substring(13));
+            } else if (arg.startsWith("--")) {
+                usage("unknown option " + arg);
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.size() != 2) usage("need input and output files");
+        if (window > 1 && t0FollowUps) usage("--window over 1 needs --no-follow-ups");
+
+        TerminalFactory factory = TerminalFactory.getInstance("QmiTerminalFactory", null, new QmiSmartcardProvider());
+        List<CardTerminal> terminals = factory.terminals().list(CardTerminals.State.CARD_PRESENT);
+        if (terminals.isEmpty()) {
+            System.err.println("no cards present");
+            System.exit(2);
+        }
+        Card card = terminals.get(0).connect("*");
+
+        AuthenticationEngine engine = new AuthenticationEngine(card, mode);
+        engine.setWindow(window);
+        engine.setT0FollowUps(t0FollowUps);
+        if (checkpointFile != null) engine.setCheckpointFile(checkpointFile);
+
+        long start = System.nanoTime();
+        long count;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(files.get(0)), StandardCharsets.US_ASCII);
+             AuthResultSink sink = new AuthResultFile(Paths.get(files.get(1)))) {
+            Iterator<AuthChallenge> challenges = reader.lines()
+                    .filter(line -> !line.trim().isEmpty() && !line.startsWith("#"))
+                    .map(AuthChallenge::parse)
+                    .iterator();
+            count = engine.run(challenges, sink);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d challenges in %.1f s, %.1f/s%n", count, seconds, count / seconds);
+        card.disconnect(true);
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("usage: AuthenticationEngine [--mode=gsm|usim-gsm|umts] [--window=W --no-follow-ups]"
+                + " [--checkpoint=FILE] INPUT OUTPUT");
+        System.exit(2);
+    }
+}
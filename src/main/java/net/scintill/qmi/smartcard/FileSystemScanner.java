@@ -0,0 +1,517 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi.smartcard;
+
+import com.google.common.io.BaseEncoding;
+
+import javax.annotation.Nullable;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Walks the file system of a UICC, and reads every EF it can, into a FileSystemSnapshot.
+ * <p>
+ * There's no command for listing a directory, so files are found by trying to select each file ID in the ranges
+ * used for them: EFs 2Fxx and DFs 7Fxx under the MF, EFs 6Fxx and DFs 5Fxx under those DFs and the ADFs (found in
+ * EF_DIR), and EFs 4Fxx under the 5Fxx DFs. These probes ask for no FCP, so no GET RESPONSE follows them, and they
+ * can be pipelined; so can the reads of a file once it's selected, whose Le comes from the FCP. These go without
+ * T=0 follow-ups (see QmiSmartcardCard.setT0FollowUps()), which would give each its own turn at the card; a read
+ * the card wants a different Le for is sent again afterwards. The SELECTs that return an FCP go one at a time,
+ * with follow-ups.
+ * <p>
+ * Given a previous snapshot, a scan selects only the files in it (unless setProbe() says otherwise), and reads only
+ * those whose FCP differs in the parts that say what can be in the file: the descriptor, size, SFI, life cycle
+ * and security attributes. The rest are copied from the previous snapshot, so a file whose contents changed
+ * without any of those changing (a record updated in place, say) keeps its old contents; don't use a previous
+ * snapshot where that matters.
+ */
+public class FileSystemScanner {
+
+    public static final int DEFAULT_WINDOW = 4;
+
+    private static final String MF = "3F00";
+    private static final String EF_DIR = "3F00/2F00";
+    private static final String ADF_PREFIX = "ADF:";
+    // the current application, in paths from the MF
+    private static final int FID_CURRENT_ADF = 0x7fff;
+
+    private static final int INS_SELECT = 0xa4;
+    private static final int INS_READ_BINARY = 0xb0;
+    private static final int INS_READ_RECORD = 0xb2;
+    private static final int P1_SELECT_BY_FID = 0x00;
+    private static final int P1_SELECT_BY_DF_NAME = 0x04;
+    private static final int P1_SELECT_BY_PATH = 0x08;
+    private static final int P2_RETURN_FCP = 0x04;
+    private static final int P2_NO_DATA = 0x0c;
+    private static final int P2_ABSOLUTE_RECORD = 0x04;
+    private static final int SW1_WRONG_LE = 0x6c;
+    // READ BINARY offsets are 15 bits
+    private static final int MAX_TRANSPARENT_SIZE = 0x8000;
+    private static final int TAG_APPLICATION_TEMPLATE = 0x61;
+    private static final int TAG_AID = 0x4f;
+
+    private final Card card;
+    @Nullable
+    private final QmiSmartcardCard qmiCard;
+    private final CardChannel channel;
+    private int window = DEFAULT_WINDOW;
+    private Boolean probe;
+
+    private String currentAdf;
+    private int filesSelected, filesRead, filesReused;
+
+    /**
+     * @param card the card to scan; a QmiSmartcardCard will have T=0 follow-ups turned on for the commands that
+     *             need them, and others are expected to do them themselves (as the PC/SC provider does). Only a card
+     *             whose basic channel is an AsyncCardChannel has its commands pipelined.
+     */
+    public FileSystemScanner(Card card) {
+        this.card = card;
+        this.qmiCard = (card instanceof QmiSmartcardCard) ? (QmiSmartcardCard) card : null;
+        this.channel = card.getBasicChannel();
+    }
+
+    /**
+     * Set how many probes or reads may be in flight at once.
+     * @param window
+     */
+    public void setWindow(int window) {
+        if (window < 1) throw new IllegalArgumentException("window must be at least 1");
+        this.window = window;
+    }
+
+    /**
+     * Set whether to look for files that aren't in the previous snapshot. By default, that's done only when there
+     * is no previous snapshot.
+     * @param probe
+     */
+    public void setProbe(boolean probe) {
+        this.probe = probe;
+    }
+
+    /**
+     * @return how many files the last scan selected
+     */
+    public int getFilesSelected() {
+        return filesSelected;
+    }
+
+    /**
+     * @return how many files the last scan read from the card
+     */
+    public int getFilesRead() {
+        return filesRead;
+    }
+
+    /**
+     * @return how many files the last scan copied from the previous snapshot
+     */
+    public int getFilesReused() {
+        return filesReused;
+    }
+
+    /**
+     * Scan the card.
+     * @param previous a previous snapshot of the same card, whose contents are reused for files that haven't
+     *                 changed; or null
+     * @return the snapshot
+     * @throws CardException if the card can't be talked to
+     * @throws IOException if the previous snapshot can't be read
+     */
+    public FileSystemSnapshot scan(@Nullable FileSystemSnapshot previous) throws CardException, IOException {
+        long time = System.currentTimeMillis();
+        currentAdf = null;
+        filesSelected = filesRead = filesReused = 0;
+
+        boolean t0FollowUps = (qmiCard != null) && qmiCard.getT0FollowUps();
+        if (qmiCard != null) qmiCard.setT0FollowUps(false);
+        try {
+            Map<String, FileSystemSnapshot.Entry> entries = new LinkedHashMap<>();
+            List<String> paths = new ArrayList<>();
+            if ((probe != null) ? probe : (previous == null)) {
+                probeAll(paths, entries, previous);
+            }
+            if (previous != null) {
+                for (FileSystemSnapshot.Entry entry : previous.getEntries()) {
+                    if (!paths.contains(entry.getPath())) paths.add(entry.getPath());
+                }
+            }
+
+            for (String path : paths) {
+                if (entries.containsKey(path)) continue;
+                FileSystemSnapshot.Entry entry = visit(path, (previous != null) ? previous.get(path) : null);
+                if (entry != null) entries.put(path, entry);
+            }
+            return new FileSystemSnapshot(time, entries);
+        } finally {
+            if (qmiCard != null) qmiCard.setT0FollowUps(t0FollowUps);
+        }
+    }
+
+    private void probeAll(List<String> paths, Map<String, FileSystemSnapshot.Entry> entries,
+                          @Nullable FileSystemSnapshot previous) throws CardException, IOException {
+        paths.add(MF);
+        paths.addAll(probe(MF, 0x2f00, 0x100));
+        for (String df : probe(MF, 0x7f00, 0xff)) { // not 7FFF, which is the current ADF
+            paths.add(df);
+            probeDf(df, paths);
+        }
+
+        if (!paths.contains(EF_DIR)) return;
+        FileSystemSnapshot.Entry dir = visit(EF_DIR, (previous != null) ? previous.get(EF_DIR) : null);
+        if (dir == null) return;
+        entries.put(EF_DIR, dir);
+        for (byte[] aid : parseDir(dir)) {
+            String adf = ADF_PREFIX + BaseEncoding.base16().encode(aid);
+            if (paths.contains(adf)) continue;
+            paths.add(adf);
+            probeDf(adf, paths);
+        }
+    }
+
+    private void probeDf(String df, List<String> paths) throws CardException {
+        paths.addAll(probe(df, 0x6f00, 0x100));
+        for (String subDf : probe(df, 0x5f00, 0x100)) {
+            paths.add(subDf);
+            paths.addAll(probe(subDf, 0x4f00, 0x100));
+        }
+    }
+
+    /**
+     * Find which of a range of file IDs exist in a DF.
+     * @param parent
+     * @param first
+     * @param count
+     * @return the paths of those that could be selected
+     * @throws CardException
+     */
+    private List<String> probe(String parent, int first, int count) throws CardException {
+        selectAdfOf(parent);
+        List<CompletableFuture<ResponseAPDU>> responses = new ArrayList<>(count);
+        Semaphore inFlight = new Semaphore(window);
+        for (int i = 0; i < count; i++) {
+            String path = parent + "/" + String.format("%04X", first + i);
+            responses.add(send(selectCommand(path, false), inFlight));
+        }
+
+        List<String> found = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (get(responses.get(i)).getSW() == 0x9000) {
+                found.add(parent + "/" + String.format("%04X", first + i));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Select a file, and read it unless it's the same as in the previous snapshot.
+     * @param path
+     * @param previous the file in the previous snapshot, or null
+     * @return the file, or null if it couldn't be selected
+     * @throws CardException
+     * @throws IOException
+     */
+    @Nullable
+    private FileSystemSnapshot.Entry visit(String path, @Nullable FileSystemSnapshot.Entry previous)
+            throws CardException, IOException {
+        ResponseAPDU selected;
+        if (isAdf(path)) {
+            currentAdf = null;
+            selected = transmitWithFollowUps(selectCommand(path, true));
+            if (selected.getSW() == 0x9000) currentAdf = path;
+        } else {
+            selectAdfOf(path);
+            selected = transmitWithFollowUps(selectCommand(path, true));
+        }
+        if (selected.getSW() != 0x9000) return null;
+        filesSelected++;
+
+        byte[] fcp = selected.getData();
+        Map<Integer, byte[]> tlvs = FileSystemSnapshot.parseFcp(fcp);
+        byte[] descriptor = tlvs.get(FileSystemSnapshot.TAG_FILE_DESCRIPTOR);
+        FileSystemSnapshot.Kind kind = kind(descriptor);
+        int recordLength = (descriptor != null && descriptor.length >= 5) ? unsigned(descriptor, 2, 2) : 0;
+        if (kind == FileSystemSnapshot.Kind.Df || kind == FileSystemSnapshot.Kind.BerTlv
+                || kind == FileSystemSnapshot.Kind.Unknown) {
+            return new FileSystemSnapshot.Entry(path, fcp, kind, recordLength, 0x9000, null);
+        }
+
+        if (previous != null && previous.hasContent() && FileSystemSnapshot.sameFcpKey(previous.getFcp(), fcp)) {
+            filesReused++;
+            return new FileSystemSnapshot.Entry(path, fcp, kind, recordLength, previous.getSw(),
+                    previous.getContent());
+        }
+
+        List<CommandAPDU> reads = new ArrayList<>();
+        if (kind == FileSystemSnapshot.Kind.Transparent) {
+            byte[] sizeBytes = tlvs.get(FileSystemSnapshot.TAG_FILE_SIZE);
+            int size = Math.min((sizeBytes != null) ? unsigned(sizeBytes, 0, sizeBytes.length) : 0,
+                    MAX_TRANSPARENT_SIZE);
+            for (int offset = 0; offset < size; offset += 256) {
+                reads.add(new CommandAPDU(0x00, INS_READ_BINARY, offset >> 8, offset & 0xff,
+                        Math.min(256, size - offset)));
+            }
+        } else if (recordLength > 0) {
+            for (int record = 1; record <= (descriptor[4] & 0xff); record++) {
+                reads.add(new CommandAPDU(0x00, INS_READ_RECORD, record, P2_ABSOLUTE_RECORD, recordLength));
+            }
+        }
+
+        List<CompletableFuture<ResponseAPDU>> responses = new ArrayList<>(reads.size());
+        Semaphore inFlight = new Semaphore(window);
+        for (CommandAPDU read : reads) {
+            responses.add(send(read, inFlight));
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        int sw = 0x9000;
+        for (int i = 0; i < responses.size(); i++) {
+            ResponseAPDU responseAPDU = get(responses.get(i));
+            if (sw != 0x9000) continue; // still wait for the rest
+            if (responseAPDU.getSW1() == SW1_WRONG_LE) {
+                // nothing depends on the state this left, so it can be done again now
+                responseAPDU = transmitWithFollowUps(reads.get(i));
+            }
+            sw = responseAPDU.getSW();
+            content.write(responseAPDU.getData(), 0, responseAPDU.getNr());
+        }
+        filesRead++;
+        return new FileSystemSnapshot.Entry(path, fcp, kind, recordLength, sw,
+                (sw == 0x9000) ? content.toByteArray() : null);
+    }
+
+    /**
+     * Make sure the ADF a path is in is the current application.
+     */
+    private void selectAdfOf(String path) throws CardException {
+        if (!path.startsWith(ADF_PREFIX)) return;
+        int end = path.indexOf('/');
+        String adf = (end < 0) ? path : path.substring(0, end);
+        if (adf.equals(currentAdf)) return;
+
+        currentAdf = null;
+        int sw = transmitWithFollowUps(selectCommand(adf, true)).getSW();
+        if (sw != 0x9000) {
+            throw new CardException(String.format("selecting %s failed: %04X", adf, sw));
+        }
+        currentAdf = adf;
+    }
+
+    /**
+     * Make a SELECT for a path: by FID for the MF, by DF name for an ADF, and by path from the MF for anything
+     * else (with 7FFF standing for the current ADF).
+     * @param path
+     * @param fcp whether to ask for the FCP
+     * @return the command
+     */
+    private static CommandAPDU selectCommand(String path, boolean fcp) {
+        int p2 = fcp ? P2_RETURN_FCP : P2_NO_DATA;
+        String[] parts = path.split("/");
+        if (path.equals(MF)) {
+            return selectCommand(P1_SELECT_BY_FID, p2, new byte[] { 0x3f, 0x00 }, fcp);
+        } else if (parts.length == 1) {
+            return selectCommand(P1_SELECT_BY_DF_NAME, p2,
+                    BaseEncoding.base16().decode(parts[0].substring(ADF_PREFIX.length())), fcp);
+        }
+
+        byte[] fids = new byte[(parts.length - (isAdf(path) ? 0 : 1)) * 2];
+        int offset = 0;
+        if (isAdf(path)) {
+            fids[offset++] = (byte) (FID_CURRENT_ADF >> 8);
+            fids[offset++] = (byte) FID_CURRENT_ADF;
+        }
+        for (int i = 1; i < parts.length; i++) {
+            int fid = Integer.parseInt(parts[i], 16);
+            fids[offset++] = (byte) (fid >> 8);
+            fids[offset++] = (byte) fid;
+        }
+        return selectCommand(P1_SELECT_BY_PATH, p2, fids, fcp);
+    }
+
+    private static CommandAPDU selectCommand(int p1, int p2, byte[] data, boolean fcp) {
+        return fcp ? new CommandAPDU(0x00, INS_SELECT, p1, p2, data, 256)
+                : new CommandAPDU(0x00, INS_SELECT, p1, p2, data);
+    }
+
+    private static boolean isAdf(String path) {
+        return path.startsWith(ADF_PREFIX);
+    }
+
+    private static FileSystemSnapshot.Kind kind(@Nullable byte[] descriptor) {
+        if (descriptor == null || descriptor.length < 1) return FileSystemSnapshot.Kind.Unknown;
+        // ETSI TS 102 221 table 11.5, leaving out the shareable bit
+        switch (descriptor[0] & 0x3f) {
+            case 0x38: return FileSystemSnapshot.Kind.Df;
+            case 0x39: return FileSystemSnapshot.Kind.BerTlv;
+            case 0x01: return FileSystemSnapshot.Kind.Transparent;
+            case 0x02: return FileSystemSnapshot.Kind.LinearFixed;
+            case 0x06: return FileSystemSnapshot.Kind.Cyclic;
+            default: return FileSystemSnapshot.Kind.Unknown;
+        }
+    }
+
+    /**
+     * Get the AIDs of the applications listed in EF_DIR.
+     */
+    private static List<byte[]> parseDir(FileSystemSnapshot.Entry dir) throws IOException {
+        List<byte[]> aids = new ArrayList<>();
+        byte[] content = dir.getContent();
+        int recordLength = dir.getRecordLength();
+        if (content == null || recordLength < 4) return aids;
+        for (int record = 0; record + recordLength <= content.length; record += recordLength) {
+            // 61 L 4F L AID ...
+            if ((content[record] & 0xff) != TAG_APPLICATION_TEMPLATE
+                    || (content[record + 2] & 0xff) != TAG_AID) continue;
+            int length = content[record + 3] & 0xff;
+            if (length < 1 || length > 16 || 4 + length > recordLength) continue;
+            byte[] aid = new byte[length];
+            System.arraycopy(content, record + 4, aid, 0, length);
+            aids.add(aid);
+        }
+        return aids;
+    }
+
+    private static int unsigned(byte[] b, int offset, int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length && i < b.length; i++) {
+            value = (value << 8) | (b[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Send a command and wait for the response, with T=0 follow-ups, so it has the card to itself.
+     * @param command
+     * @return the response
+     * @throws CardException
+     */
+    private ResponseAPDU transmitWithFollowUps(CommandAPDU command) throws CardException {
+        if (qmiCard == null) return channel.transmit(command);
+        qmiCard.setT0FollowUps(true);
+        try {
+            return channel.transmit(command);
+        } finally {
+            qmiCard.setT0FollowUps(false);
+        }
+    }
+
+    /**
+     * Send a command, pipelined if the channel allows it.
+     * @param command
+     * @param inFlight a permit of which is held until the response comes
+     * @return the future response
+     * @throws CardException
+     */
+    private CompletableFuture<ResponseAPDU> send(CommandAPDU command, Semaphore inFlight) throws CardException {
+        if (!(channel instanceof AsyncCardChannel)) {
+            return CompletableFuture.completedFuture(channel.transmit(command));
+        }
+        inFlight.acquireUninterruptibly();
+        CompletableFuture<ResponseAPDU> response = ((AsyncCardChannel) channel).transmitAsync(command);
+        response.whenComplete((responseAPDU, e) -> inFlight.release());
+        return response;
+    }
+
+    private static ResponseAPDU get(CompletableFuture<ResponseAPDU> response) throws CardException {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CardException("interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CardException) throw (CardException) e.getCause();
+            throw new CardException(e.getCause());
+        }
+    }
+
+    /**
+     * Scan the first card present, and write the snapshot. With a previous snapshot, only files that changed are
+     * read.
+     * @param args [--previous=SNAPSHOT] [--probe] [--window=W] OUTPUT
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Path previousFile = null;
+        boolean probe = false;
+        int window = DEFAULT_WINDOW;
+        Path output = null;
+        for (String arg : args) {
+            if (arg.startsWith("--previous=")) {
+                previousFile = Paths.get(arg.substring(11));
+            } else if (arg.equals("--probe")) {
+                probe = true;
+            } else if (arg.startsWith("--window=")) {
+                window = Integer.parseInt(arg.substring(9));
+            } else if (arg.startsWith("--") || output != null) {
+                usage("unknown option " + arg);
+            } else {
+                output = Paths.get(arg);
+            }
+        }
+        if (output == null) usage("need an output file");
+
+        TerminalFactory factory = TerminalFactory.getInstance("QmiTerminalFactory", null, new QmiSmartcardProvider());
+        List<CardTerminal> terminals = factory.terminals().list(CardTerminals.State.CARD_PRESENT);
+        if (terminals.isEmpty()) {
+            System.err.println("no cards present");
+            System.exit(2);
+        }
+        Card card = terminals.get(0).connect("*");
+
+        FileSystemSnapshot previous = (previousFile != null) ? FileSystemSnapshot.open(previousFile) : null;
+        FileSystemScanner scanner = new FileSystemScanner(card);
+        scanner.setWindow(window);
+        if (probe) scanner.setProbe(true);
+
+        long start = System.nanoTime();
+        FileSystemSnapshot snapshot = scanner.scan(previous);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        card.disconnect(true);
+
+        // write beside the output and move it over, as the previous snapshot may be the same file
+        Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+        snapshot.write(temp);
+        Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+        System.out.printf("%d files (%d selected, %d read, %d unchanged) in %.1f s%n", snapshot.getEntries().size(),
+                scanner.getFilesSelected(), scanner.getFilesRead(), scanner.getFilesReused(), seconds);
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("usage: FileSystemScanner [--previous=SNAPSHOT] [--probe] [--window=W] OUTPUT");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi.smartcard;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The files of a card, with their FCPs and contents, as found by FileSystemScanner.
+ * <p>
+ * Files are known by their path: "3F00/7F10/6F3A" for files under the MF, and "ADF:A0000000871002.../6F07" for
+ * files in an application. On disk, an index of the files (paths, FCPs and where their contents are) comes first,
+ * followed by the contents, each compressed on its own; open() reads only the index, and a file's contents are
+ * read when asked for.
+ */
+public class FileSystemSnapshot {
+
+    private static final int MAGIC = 0x514e5350; // QNSP
+    private static final int VERSION = 1;
+
+    public enum Kind {
+        Df,
+        Transparent,
+        LinearFixed,
+        Cyclic,
+        /** BER-TLV structured; not read */
+        BerTlv,
+        Unknown,
+    }
+
+    /**
+     * One file.
+     */
+    public static final class Entry {
+        private final String path;
+        private final byte[] fcp;
+        private final Kind kind;
+        private final int recordLength;
+        private final int sw;
+        // the contents, or where to read them from
+        private byte[] content;
+        private final Path file;
+        private final long offset;
+        private final int storedLength, length;
+
+        /* package */ Entry(String path, byte[] fcp, Kind kind, int recordLength, int sw, @Nullable byte[] content) {
+            this.path = path;
+            this.fcp = fcp;
+            this.kind = kind;
+            this.recordLength = recordLength;
+            this.sw = sw;
+            this.content = content;
+            this.file = null;
+            this.offset = 0;
+            this.storedLength = 0;
+            this.length = (content != null) ? content.length : -1;
+        }
+
+        private Entry(String path, byte[] fcp, Kind kind, int recordLength, int sw, Path file, long offset,
+                      int storedLength, int length) {
+            this.path = path;
+            this.fcp = fcp;
+            this.kind = kind;
+            this.recordLength = recordLength;
+            this.sw = sw;
+            this.file = file;
+            this.offset = offset;
+            this.storedLength = storedLength;
+            this.length = length;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the FCP template returned by SELECT
+         */
+        public byte[] getFcp() {
+            return fcp.clone();
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the record length, for record files
+         */
+        public int getRecordLength() {
+            return recordLength;
+        }
+
+        /**
+         * @return the status word of reading the file: 9000, or why it couldn't be read (e.g. 6982 for security)
+         */
+        public int getSw() {
+            return sw;
+        }
+
+        /**
+         * @return whether the contents were read
+         */
+        public boolean hasContent() {
+            return length >= 0;
+        }
+
+        /**
+         * Get the contents: the bytes of a transparent file, or the records of a record file one after another.
+         * @return the contents, or null if the file wasn't read
+         * @throws IOException if the snapshot file can't be read
+         */
+        @Nullable
+        public synchronized byte[] getContent() throws IOException {
+            if (length < 0) return null;
+            if (content == null) {
+                content = load();
+            }
+            return content.clone();
+        }
+
+        private byte[] load() throws IOException {
+            ByteBuffer stored = ByteBuffer.allocate(storedLength);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (stored.hasRemaining()) {
+                    if (channel.read(stored, offset + stored.position()) < 0) {
+                        throw new IOException("snapshot truncated");
+                    }
+                }
+            }
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(stored.array());
+                byte[] bytes = new byte[length];
+                int n = 0;
+                while (n < length && !inflater.finished()) {
+                    n += inflater.inflate(bytes, n, length - n);
+                    if (n < length && inflater.needsInput()) break;
+                }
+                if (n != length) throw new IOException("snapshot content of " + path + " is corrupt");
+                return bytes;
+            } catch (DataFormatException e) {
+                throw new IOException("snapshot content of " + path + " is corrupt", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private final long time;
+    private final Map<String, Entry> entries;
+
+    /* package */ FileSystemSnapshot(long time, Map<String, Entry> entries) {
+        this.time = time;
+        this.entries = Collections.unmodifiableMap(new TreeMap<>(entries));
+    }
+
+    /**
+     * @return when the scan was made, in ms since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the files, in path order
+     */
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * @param path
+     * @return the file, or null if it wasn't found
+     */
+    @Nullable
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Write the snapshot to a file.
+     * @param path
+     * @throws IOException
+     */
+    public void write(Path path) throws IOException {
+        // compress the contents first, so the index can say where they are
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        index.writeInt(entries.size());
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            byte[] buf = new byte[4096];
+            for (Entry entry : entries.values()) {
+                byte[] content = entry.getContent();
+                int offset = data.size();
+                if (content != null) {
+                    deflater.reset();
+                    deflater.setInput(content);
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        data.write(buf, 0, deflater.deflate(buf));
+                    }
+                }
+                index.writeUTF(entry.path);
+                index.writeByte(entry.kind.ordinal());
+                index.writeShort(entry.recordLength);
+                index.writeShort(entry.sw);
+                index.writeShort(entry.fcp.length);
+                index.write(entry.fcp);
+                index.writeInt(offset);
+                index.writeInt(data.size() - offset);
+                index.writeInt(content != null ? content.length : -1);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        try (OutputStream out = Files.newOutputStream(path);
+             DataOutputStream header = new DataOutputStream(out)) {
+            header.writeInt(MAGIC);
+            header.writeByte(VERSION);
+            header.writeLong(time);
+            header.writeInt(indexBytes.size());
+            indexBytes.writeTo(header);
+            data.writeTo(header);
+        }
+    }
+
+    /**
+     * Read a snapshot's index from a file. The contents of each file are read from it when asked for.
+     * @param path
+     * @return the snapshot
+     * @throws IOException
+     */
+    public static FileSystemSnapshot open(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path);
+             DataInputStream header = new DataInputStream(in)) {
+            if (header.readInt() != MAGIC) throw new IOException("not a snapshot: " + path);
+            if (header.readByte() != VERSION) throw new IOException("unsupported snapshot version: " + path);
+            long time = header.readLong();
+            int indexLength = header.readInt();
+            long dataStart = 4 + 1 + 8 + 4 + indexLength;
+
+            byte[] indexBytes = new byte[indexLength];
+            header.readFully(indexBytes);
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(indexBytes));
+            int count = index.readInt();
+            Map<String, Entry> entries = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                String entryPath = index.readUTF();
+                Kind kind = Kind.values()[index.readByte()];
+                int recordLength = index.readUnsignedShort();
+                int sw = index.readUnsignedShort();
+                byte[] fcp = new byte[index.readUnsignedShort()];
+                index.readFully(fcp);
+                long offset = dataStart + index.readInt();
+                int storedLength = index.readInt();
+                int length = index.readInt();
+                entries.put(entryPath, new Entry(entryPath, fcp, kind, recordLength, sw, path, offset,
+                        storedLength, length));
+            }
+            return new FileSystemSnapshot(time, entries);
+        }
+    }
+
+    /**
+     * Compare the attributes of two FCPs that say whether a file's contents could differ: the file descriptor,
+     * size, SFI, life cycle status and security attributes. Other parts (e.g. proprietary information) are
+     * ignored.
+     * @param a
+     * @param b
+     * @return true if they are the same
+     */
+    /* package */ static boolean sameFcpKey(byte[] a, byte[] b) {
+        return Arrays.equals(fcpKey(a), fcpKey(b));
+    }
+
+    // FCP tags (ETSI TS 102 221 11.1.1.3)
+    /* package */ static final int TAG_FCP = 0x62;
+    /* package */ static final int TAG_FILE_SIZE = 0x80;
+    /* package */ static final int TAG_FILE_DESCRIPTOR = 0x82;
+    private static final int TAG_LIFE_CYCLE = 0x8a;
+    private static final int TAG_SECURITY_REFERENCED = 0x8b;
+    private static final int TAG_SECURITY_COMPACT = 0x8c;
+    private static final int TAG_SFI = 0x88;
+    private static final int TAG_SECURITY_EXPANDED = 0xab;
+    private static final int[] KEY_TAGS = { TAG_FILE_DESCRIPTOR, TAG_FILE_SIZE, TAG_SFI, TAG_LIFE_CYCLE,
+            TAG_SECURITY_REFERENCED, TAG_SECURITY_COMPACT, TAG_SECURITY_EXPANDED };
+
+    private static byte[] fcpKey(byte[] fcp) {
+        Map<Integer, byte[]> tlvs = parseFcp(fcp);
+        ByteArrayOutputStream key = new ByteArrayOutputStream();
+        for (int tag : KEY_TAGS) {
+            byte[] value = tlvs.get(tag);
+            key.write(tag);
+            if (value == null) {
+                key.write(0xff); // absent, which is different from empty
+            } else {
+                key.write(value.length);
+                key.write(value, 0, value.length);
+            }
+        }
+        return key.toByteArray();
+    }
+
+    /**
+     * Parse the TLVs of an FCP template.
+     * @param fcp
+     * @return the values by tag; empty if it isn't an FCP template
+     */
+    /* package */ static Map<Integer, byte[]> parseFcp(byte[] fcp) {
+        Map<Integer, byte[]> tlvs = new TreeMap<>();
+        if (fcp.length < 2 || (fcp[0] & 0xff) != TAG_FCP) return tlvs;
+        int[] position = { 1 };
+        int end = Math.min(fcp.length, readLength(fcp, position) + position[0]);
+        while (position[0] + 2 <= end) {
+            int tag = fcp[position[0]++] & 0xff;
+            int length = readLength(fcp, position);
+            if (length < 0 || position[0] + length > end) break;
+            tlvs.put(tag, Arrays.copyOfRange(fcp, position[0], position[0] + length));
+            position[0] += length;
+        }
+        return tlvs;
+    }
+
+    private static int readLength(byte[] b, int[] position) {
+        if (position[0] >= b.length) return -1;
+        int length = b[position[0]++] & 0xff;
+        if (length == 0x81) {
+            if (position[0] >= b.length) return -1;
+            length = b[position[0]++] & 0xff;
+        } else if (length > 0x80) {
+            return -1;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package net.scintill.qmi.smartcard;
+
+import com.google.common.io.BaseEncoding;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends APDUs as fast as it can, from several sessions at once, and reports the throughput and latency. Run it
+ * against a real modem to size hardware, or against the in-process simulated one to catch regressions in the
+ * client itself.
+ * <p>
+ * The qmismartcard.* options of QmiSmartcardProvider apply too.
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = "usage: LoadGenerator [options]\n"
+            + "  --simulate[=SLOTS]      use an in-process simulated modem (default 1 slot)\n"
+            + "  --latency=US            simulated time per APDU, in us (default 2000)\n"
+            + "  --jitter=US             simulated random extra time per APDU, in us (default 0)\n"
+            + "  --terminals=N           use the first N terminals with a card (default all)\n"
+            + "  --sessions=M            concurrent sessions, spread over the terminals (default 1)\n"
+            + "  --pipeline=K            APDUs each session keeps in flight with transmitAsync() (default 1:\n"
+            + "                          one at a time with transmit())\n"
+            + "  --in-flight=N           APDUs each slot may have in flight (default "
+            + "qmismartcard.maxApdusInFlight)\n"
+            + "  --duration=SECONDS      run this long (default 10)\n"
+            + "  --count=N               send this many APDUs, instead of running for a duration\n"
+            + "  --mix=HEX[:WEIGHT],...  APDUs to send, picked at random by weight\n"
+            + "                          (default A0A40000023F00:1,A0B0000010:4,A0F2000016:1)\n"
+            + "  --max-p99=US            exit with status 1 if the p99 latency is higher\n";
+
+    private static final String DEFAULT_MIX = "A0A40000023F00:1,A0B0000010:4,A0F2000016:1";
+
+    // latency histogram buckets: 16 per power of two of microseconds, so the percentiles are within about 6%
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // up to 2^31 us (35 minutes), which no APDU gets near
+    private static final int BUCKETS = 32 * SUB_BUCKETS;
+
+    private final List<CardChannel> channels;
+    private final int sessions;
+    private final int pipeline;
+    private final CommandAPDU[] mix;
+    private final long[] cumulativeWeights;
+
+    private final AtomicLong remaining;
+    private volatile long deadline;
+    private final LongAdder errors = new LongAdder();
+    private final Map<Integer, LongAdder> statusWords = new ConcurrentHashMap<>();
+
+    private LoadGenerator(List<CardChannel> channels, int sessions, int pipeline, List<CommandAPDU> mix,
+                          List<Long> weights, long count) {
+        this.channels = channels;
+        this.sessions = sessions;
+        this.pipeline = pipeline;
+        this.mix = mix.toArray(new CommandAPDU[0]);
+        this.cumulativeWeights = new long[weights.size()];
+        long total = 0;
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            total += weights.get(i);
+            cumulativeWeights[i] = total;
+        }
+        this.remaining = new AtomicLong(count);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) usage("unexpected argument " + arg);
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "" : arg.substring(eq + 1));
+        }
+
+        if (options.containsKey("simulate")) {
+            String slots = options.remove("simulate");
+            System.setProperty("qmismartcard.simulate", slots);
+            System.setProperty("qmismartcard.simulatedLatency", String.valueOf(intOption(options, "latency", 2000)));
+            System.setProperty("qmismartcard.simulatedJitter", String.valueOf(intOption(options, "jitter", 0)));
+        }
+        if (options.containsKey("in-flight")) {
+            int inFlight = intOption(options, "in-flight", 0);
+            if (inFlight < 1) usage("in-flight must be at least 1");
+            System.setProperty("qmismartcard.maxApdusInFlight", String.valueOf(inFlight));
+        }
+        int maxTerminals = intOption(options, "terminals", Integer.MAX_VALUE);
+        int sessions = intOption(options, "sessions", 1);
+        int pipeline = intOption(options, "pipeline", 1);
+        long count = options.containsKey("count") ? intOption(options, "count", 0) : Long.MAX_VALUE;
+        int duration = intOption(options, "duration", count == Long.MAX_VALUE ? 10 : Integer.MAX_VALUE);
+        int maxP99 = intOption(options, "max-p99", Integer.MAX_VALUE);
+
+        List<CommandAPDU> mix = new ArrayList<>();
+        List<Long> weights = new ArrayList<>();
+        String mixOption = options.containsKey("mix") ? options.remove("mix") : DEFAULT_MIX;
+        for (String entry : mixOption.split(",")) {
+            String[] parts = entry.trim().split(":");
+            try {
+                mix.add(new CommandAPDU(BaseEncoding.base16().decode(parts[0].toUpperCase())));
+                weights.add(parts.length > 1 ? Long.parseLong(parts[1]) : 1);
+            } catch (IllegalArgumentException e) {
+                usage("bad APDU in mix: " + entry);
+            }
+        }
+        if (!options.isEmpty()) usage("unknown option --" + options.keySet().iterator().next());
+        if (sessions < 1 || pipeline < 1) usage("sessions and pipeline must be at least 1");
+
+        TerminalFactory factory = TerminalFactory.getInstance("QmiTerminalFactory", null, new QmiSmartcardProvider());
+        List<CardChannel> channels = new ArrayList<>();
+        for (CardTerminal terminal : factory.terminals().list(CardTerminals.State.CARD_PRESENT)) {
+            if (channels.size() == maxTerminals) break;
+            Card card = terminal.connect("*");
+            channels.add(card.getBasicChannel());
+        }
+        if (channels.isEmpty()) {
+            System.err.println("no cards present");
+            System.exit(2);
+        }
+
+        LoadGenerator generator = new LoadGenerator(channels, sessions, pipeline, mix, weights, count);
+        Recorder latencies = generator.run(TimeUnit.SECONDS.toNanos(duration));
+        long p99 = generator.report(latencies);
+
+        for (CardChannel channel : channels) {
+            channel.getCard().disconnect(true);
+        }
+        System.exit(p99 > maxP99 ? 1 : 0);
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.remove(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            usage("bad number for --" + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.print(USAGE);
+        System.exit(2);
+    }
+
+    /**
+     * Run the sessions until the count or duration is used up.
+     * @param duration in ns
+     * @return the latencies of all the sessions together
+     * @throws InterruptedException
+     */
+    private Recorder run(long duration) throws InterruptedException {
+        final Recorder[] recorders = new Recorder[sessions];
+        Thread[] threads = new Thread[sessions];
+        long start = System.nanoTime();
+        deadline = start + duration;
+        for (int i = 0; i < sessions; i++) {
+            final Recorder recorder = recorders[i] = new Recorder();
+            // spread the sessions over the cards
+            final CardChannel channel = channels.get(i % channels.size());
+            threads[i] = new Thread(() -> runSession(channel, recorder), "LoadSession" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Recorder latencies = new Recorder();
+        for (Recorder recorder : recorders) {
+            latencies.add(recorder);
+        }
+        long total = latencies.count;
+        System.out.printf("%d sessions on %d terminals, pipeline %d, %.1f s%n",
+                sessions, channels.size(), pipeline, elapsed / 1e9);
+        System.out.printf("%d APDUs, %d errors, %.1f APDUs/s%n", total, errors.sum(), total / (elapsed / 1e9));
+        return latencies;
+    }
+
+    private boolean takeTurn() {
+        return System.nanoTime() - deadline < 0 && remaining.getAndDecrement() > 0;
+    }
+
+    private void runSession(CardChannel channel, final Recorder recorder) {
+        if (pipeline == 1) {
+            while (takeTurn()) {
+                long start = System.nanoTime();
+                try {
+                    ResponseAPDU response = channel.transmit(pickCommand());
+                    recorder.record(System.nanoTime() - start, response.getSW());
+                } catch (CardException e) {
+                    errors.increment();
+                }
+            }
+            return;
+        }
+
+        AsyncCardChannel asyncChannel = AsyncCardChannel.from(channel);
+        final Semaphore inFlight = new Semaphore(pipeline);
+        try {
+            while (true) {
+                inFlight.acquire();
+                if (!takeTurn()) break;
+                final long start = System.nanoTime();
+                asyncChannel.transmitAsync(pickCommand()).whenComplete((response, e) -> {
+                    if (e == null) {
+                        recorder.record(System.nanoTime() - start, response.getSW());
+                    } else {
+                        errors.increment();
+                    }
+                    inFlight.release();
+                });
+            }
+            // wait for the stragglers
+            inFlight.acquire(pipeline - 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CommandAPDU pickCommand() {
+        long pick = ThreadLocalRandom.current().nextLong(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (pick < cumulativeWeights[i]) return mix[i];
+        }
+        return mix[mix.length - 1];
+    }
+
+    /**
+     * Print the latency percentiles and status words.
+     * @param latencies
+     * @return the p99 latency, in us
+     */
+    private long report(Recorder latencies) {
+        long p99 = latencies.percentile(0.99);
+        if (latencies.count > 0) {
+            System.out.printf("latency us: p50 %d, p99 %d, p999 %d, max %d%n",
+                    latencies.percentile(0.50), p99, latencies.percentile(0.999), latencies.maxMicros);
+        }
+        Map<Integer, LongAdder> sorted = new TreeMap<>(statusWords);
+        StringBuilder sb = new StringBuilder("status words:");
+        for (Map.Entry<Integer, LongAdder> entry : sorted.entrySet()) {
+            sb.append(String.format(" %04X %d", entry.getKey(), entry.getValue().sum()));
+        }
+        System.out.println(sb);
+        return p99;
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) return (int) Math.max(0, micros);
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, exponent * SUB_BUCKETS + subBucket);
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS;
+        int subBucket = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * A latency histogram, for one session or all of them. It's a fixed size however long the run, like those of
+     * ApduStats, but finer. transmitAsync() completions come in on the input thread, so it's synchronized, but
+     * only the session and that thread ever use it.
+     */
+    private class Recorder {
+        final long[] buckets = new long[BUCKETS];
+        long count;
+        long maxMicros;
+
+        synchronized void record(long nanos, int sw) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            buckets[bucketOf(micros)]++;
+            count++;
+            maxMicros = Math.max(maxMicros, micros);
+            statusWords.computeIfAbsent(sw, k -> new LongAdder()).increment();
+        }
+
+        synchronized void add(Recorder other) {
+            synchronized (other) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    buckets[i] += other.buckets[i];
+                }
+                count += other.count;
+                maxMicros = Math.max(maxMicros, other.maxMicros);
+            }
+        }
+
+        /**
+         * @param fraction
+         * @return the latency at the given fraction, rounded up to its bucket's upper bound, in us
+         */
+        synchronized long percentile(double fraction) {
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) return Math.min(bucketUpperBound(i), maxMicros);
+            }
+            return 0;
+        }
+    }
+}
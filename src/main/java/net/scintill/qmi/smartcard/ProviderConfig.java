@@ -0,0 +1,83 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi.smartcard;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The provider's options. Each is read from the system property "qmismartcard.&lt;name&gt;", or else from the
+ * properties file named by the system property "qmismartcard.config", which uses the same keys.
+ */
+/* package */ final class ProviderConfig {
+
+    private static final String PREFIX = "qmismartcard.";
+
+    private static ProviderConfig sInstance;
+
+    private final Properties fileProperties = new Properties();
+
+    private ProviderConfig(Properties fileProperties) {
+        this.fileProperties.putAll(fileProperties);
+    }
+
+    /**
+     * Get the configuration, reading the config file the first time.
+     * @return the configuration
+     */
+    static synchronized ProviderConfig get() {
+        if (sInstance == null) {
+            Properties properties = new Properties();
+            String configPath = System.getProperty(PREFIX+"config");
+            if (configPath != null) {
+                try (InputStream is = new FileInputStream(configPath)) {
+                    properties.load(is);
+                } catch (IOException e) {
+                    throw new RuntimeException("unable to read config file "+configPath, e);
+                }
+            }
+            sInstance = new ProviderConfig(properties);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param name option name, without the "qmismartcard." prefix
+     * @return the value, or null if not set
+     */
+    String getString(String name) {
+        String value = System.getProperty(PREFIX+name);
+        return (value != null) ? value : fileProperties.getProperty(PREFIX+name);
+    }
+
+    boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name);
+        return (value != null) ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    int getInt(String name, int defaultValue) {
+        String value = getString(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -22,28 +22,37 @@ import net.scintill.qmi.SapClient;
 
 import javax.smartcardio.*;
 import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class QmiSmartcardCard extends Card {
+    // SAP connection changes are reported by indication, rather than a response, so they don't get adaptive timeouts
+    private static final int CONNECT_TIMEOUT = ProviderConfig.get().getInt("connectTimeout", 10000);
+    private static final boolean T0_FOLLOW_UPS = ProviderConfig.get().getBoolean("t0FollowUps", false);
+
     private byte slot;
     private Client client;
     private ATR atr;
     private SapClient sapClient;
     private QmiSmartcardTerminals.QmiSmartcardTerminal terminal;
+    private final ApduStats stats;
+    private final BasicChannel basicChannel = new BasicChannel();
+    private volatile boolean t0FollowUps = T0_FOLLOW_UPS;
 
-    public QmiSmartcardCard(byte slot, Client client, QmiSmartcardTerminals.QmiSmartcardTerminal terminal) throws QmiException {
+    public QmiSmartcardCard(byte slot, Client client, QmiSmartcardTerminals.QmiSmartcardTerminal terminal) throws QmiException, CardException {
         this.slot = slot;
         this.client = client;
         this.terminal = terminal;
+        this.stats = terminal.getStats();
 
-        this.sapClient = new SapClient(client, slot);
-        SapClient.ConnectionStatus currentStatus = sapClient.getConnectionStatus();
-        // we sometimes get stuck in Connecting state
-        if (currentStatus == SapClient.ConnectionStatus.Connecting) {
-            sapClient.disconnect(10000);
-            // TODO sometimes need to wait here?
-        }
-        if (currentStatus != SapClient.ConnectionStatus.ConnectedSuccessfully) {
-            sapClient.connect(10000);
+        // the terminal keeps the SAP client (and so its connection) across cards, so reopening is quick
+        this.sapClient = terminal.getSapClient();
+        if (!sapClient.ensureConnected(CONNECT_TIMEOUT)) {
+            throw new QmiException("unable to connect to SIM");
         }
 
         this.atr = sapClient.getAtr();
@@ -59,9 +68,32 @@ public class QmiSmartcardCard extends Card {
         return null;
     }
 
+    /**
+     * Set whether the T=0 procedure bytes are handled here, rather than by the caller. With follow-ups, a response
+     * of 61xx (or 9Fxx) is followed by GET RESPONSE and one of 6Cxx by a resend with Le=xx, and transmit() returns
+     * the combined response. The default is the qmismartcard.t0FollowUps property, or off, as tools like SIMTester
+     * do these themselves. With follow-ups, each APDU has the slot to itself until its exchange is finished, so
+     * transmitAsync() doesn't pipeline them.
+     * @param t0FollowUps
+     */
+    public void setT0FollowUps(boolean t0FollowUps) {
+        this.t0FollowUps = t0FollowUps;
+    }
+
+    public boolean getT0FollowUps() {
+        return t0FollowUps;
+    }
+
+    /**
+     * @return the APDU statistics of this card's slot, which are also available over JMX
+     */
+    public ApduStats getApduStats() {
+        return stats;
+    }
+
     @Override
     public CardChannel getBasicChannel() {
-        return new BasicChannel();
+        return basicChannel;
     }
 
     @Override
@@ -95,17 +127,35 @@ public class QmiSmartcardCard extends Card {
             throw new CardException("QMI error while resetting", e);
         }
 
-        try {
-            sapClient.disconnect(10000);
-        } catch (QmiException e) {
-            throw new CardException("QMI error while disconnecting", e);
-        }
+        // the SAP connection is left up, to be reused by the next connect
 
         terminal.cardDisconnectNotify();
         // TODO throw illegalstateexception if someone tries to use disconnected things? that's part of the contract...
     }
 
-    class BasicChannel extends CardChannel {
+    private static class PendingApdu {
+        final CompletableFuture<ResponseAPDU> sent;
+        final CompletableFuture<ResponseAPDU> ordered = new CompletableFuture<>();
+
+        PendingApdu(CompletableFuture<ResponseAPDU> sent) {
+            this.sent = sent;
+        }
+
+        void complete() {
+            try {
+                ordered.complete(sent.join());
+            } catch (CompletionException e) {
+                ordered.completeExceptionally(new CardException("QMI error sending APDU", e.getCause()));
+            }
+        }
+    }
+
+    class BasicChannel extends CardChannel implements AsyncCardChannel {
+        // APDUs sent by transmitAsync(), oldest first, whose futures haven't been completed yet
+        private final Queue<PendingApdu> pendingApdus = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger completionRequests = new AtomicInteger();
+        // a lock rather than a monitor, since sending may wait for the slot's in-flight limit
+        private final ReentrantLock sendLock = new ReentrantLock();
 
         @Override
         public Card getCard() {
@@ -119,12 +169,69 @@ public class QmiSmartcardCard extends Card {
 
         @Override
         public ResponseAPDU transmit(CommandAPDU commandAPDU) throws CardException {
+            long start = System.nanoTime();
             try {
-                return sapClient.sendApdu(commandAPDU);
+                ResponseAPDU responseAPDU = sapClient.sendApdu(commandAPDU, t0FollowUps);
+                stats.record(commandAPDU, responseAPDU.getSW(), System.nanoTime() - start);
+                return responseAPDU;
             } catch (QmiException e) {
+                stats.recordError();
                 throw new CardException("QMI error sending APDU", e);
             }
+        }
+
+        @Override
+        public CompletableFuture<ResponseAPDU> transmitAsync(CommandAPDU commandAPDU) {
+            sendLock.lock();
+            try {
+                return transmitAsyncLocked(commandAPDU);
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        private CompletableFuture<ResponseAPDU> transmitAsyncLocked(CommandAPDU commandAPDU) {
+            // the latency includes any wait for the slot's in-flight limit, as that is part of what the caller sees
+            final long start = System.nanoTime();
+            CompletableFuture<ResponseAPDU> response;
+            try {
+                response = sapClient.sendApduAsync(commandAPDU, t0FollowUps);
+            } catch (QmiException e) {
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+
+            // hold the result back until everything sent before it has completed
+            PendingApdu pending = new PendingApdu(response);
+            pendingApdus.add(pending);
+            response.whenComplete((responseAPDU, e) -> {
+                if (e == null) {
+                    stats.record(commandAPDU, responseAPDU.getSW(), System.nanoTime() - start);
+                } else {
+                    stats.recordError();
+                }
+                completeInOrder();
+            });
+            return pending.ordered;
+        }
 
+        /**
+         * Complete the futures of APDUs that have their response, oldest first, up to the first one still waiting.
+         * One thread at a time does this, and each future's dependent actions have run before the next future is
+         * completed, so they run in order too.
+         */
+        private void completeInOrder() {
+            if (completionRequests.getAndIncrement() != 0) return; // another thread is at it, and will look again
+
+            int requests = 1;
+            do {
+                PendingApdu head;
+                while ((head = pendingApdus.peek()) != null && head.sent.isDone()) {
+                    pendingApdus.poll();
+                    head.complete();
+                }
+                requests = completionRequests.addAndGet(-requests);
+            } while (requests != 0);
         }
 
         @Override
@@ -17,25 +17,159 @@
 package net.scintill.qmi.smartcard;
 
 import net.scintill.qmi.Client;
+import net.scintill.qmi.DeviceDiscovery;
+import net.scintill.qmi.DeviceInfo;
 import net.scintill.qmi.LinuxFileClient;
+import net.scintill.qmi.QmiException;
+import net.scintill.qmi.QmiProxy;
+import net.scintill.qmi.QmuxdClient;
+import net.scintill.qmi.ServiceCode;
+import net.scintill.qmi.SimulatedModem;
+import net.scintill.qmi.TransactionTracer;
+import net.scintill.qmi.UnixSocketClient;
+import net.scintill.qmi.VirtualThreads;
 
+import javax.smartcardio.CardException;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.Provider;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * The provider of QmiTerminalFactory. Nothing is opened until the terminals are first used.
+ * <p>
+ * Options (system properties, or a file named by -Dqmismartcard.config; see ProviderConfig):
+ * <ul>
+ * <li>qmismartcard.simulate: use an in-process simulated modem with this many slots (empty for 1)</li>
+ * <li>qmismartcard.simulatedLatency, simulatedJitter: how many us the simulated cards take per APDU</li>
+ * <li>qmismartcard.device: the QMI device; by default, the first one found in sysfs, or /dev/cdc-wdm0</li>
+ * <li>qmismartcard.qmuxd: use qmuxd's socket instead (empty for the default path)</li>
+ * <li>qmismartcard.proxy: use a QmiProxy instead (empty for the default path, see QmiProxy.defaultSocketPath())</li>
+ * <li>qmismartcard.clientIdLeases: "reclaim" or "release" client IDs left by earlier processes</li>
+ * <li>qmismartcard.recovery: "false" to not reopen the device after it is lost</li>
+ * <li>qmismartcard.virtualThreads: "true" to run the message pumps on virtual threads (Java 21+)</li>
+ * <li>qmismartcard.maxApdusInFlight: how many APDUs may wait for a response on each slot at once (at least 1)</li>
+ * <li>qmismartcard.apduTimeout: ms to wait for the response to an APDU, the ATR or a reset (default 30000)</li>
+ * <li>qmismartcard.connectTimeout: ms to wait for the SIM connection</li>
+ * <li>qmismartcard.t0FollowUps: "true" to do GET RESPONSE after 61xx and resend after 6Cxx in transmit()</li>
+ * <li>qmismartcard.statsFile: file to write APDU statistics to (JSON if it ends in .json, otherwise CSV)</li>
+ * <li>qmismartcard.statsInterval: ms between writes of the statistics file</li>
+ * <li>qmismartcard.traceFile: file to write the stage timings of recent QMI transactions to at exit, as Chrome
+ * trace events</li>
+ * <li>qmismartcard.traceCapacity: how many transactions to keep for the trace file</li>
+ * <li>qmismartcard.debug: "true" to log QMI traffic to stderr</li>
+ * </ul>
+ */
 public class QmiSmartcardProvider extends Provider {
 
-    /* package */ static Client sQmiClient;
+    private static final String DEFAULT_DEVICE_PATH = "/dev/cdc-wdm0";
+
+    private static Client sQmiClient;
+    private static volatile DeviceInfo sDeviceInfo;
 
     public QmiSmartcardProvider() {
-        // TODO include version stuff from phone
         super("QmiSmartcardProvider", 1.0, "QmiSmartcardProvider");
-        try {
-            // TODO make configurable
-            sQmiClient = new LinuxFileClient("/dev/cdc-wdm0", null/*System.err*/);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        sQmiClient.start();
         put("TerminalFactory.QmiTerminalFactory", TerminalFactorySpi.class.getName());
     }
+
+    /**
+     * Get the QMI client, opening and starting it the first time.
+     * @return the client
+     * @throws CardException if the device can't be opened
+     */
+    /* package */ static synchronized Client getClient() throws CardException {
+        if (sQmiClient == null) {
+            try {
+                sQmiClient = openClient(ProviderConfig.get());
+            } catch (IOException e) {
+                throw new CardException("unable to open QMI device", e);
+            }
+            fetchDeviceInfo(sQmiClient);
+        }
+        return sQmiClient;
+    }
+
+    private static Client openClient(ProviderConfig config) throws IOException {
+        PrintStream debug = config.getBoolean("debug", false) ? System.err : null;
+        String proxySocketPath = config.getString("proxy");
+        String qmuxdSocketPath = config.getString("qmuxd");
+
+        Client qmiClient;
+        if (config.getString("simulate") != null) {
+            // no hardware; for load testing and trying things out
+            SimulatedModem modem = new SimulatedModem(config.getInt("simulate", 1), debug);
+            modem.setApduLatency(config.getInt("simulatedLatency", 2000), config.getInt("simulatedJitter", 0),
+                    TimeUnit.MICROSECONDS);
+            qmiClient = modem.getClient();
+        } else if (qmuxdSocketPath != null) {
+            // share the modem with the running RIL stack
+            String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+            qmiClient = new QmuxdClient(qmuxdSocketPath.isEmpty() ? QmuxdClient.DEFAULT_SOCKET_PATH : qmuxdSocketPath,
+                    QmuxdClient.DEFAULT_CLIENT_SOCKET_PREFIX+pid, 0, debug);
+        } else if (proxySocketPath != null) {
+            // a QmiProxy owns the device, and has already allocated client IDs
+            qmiClient = new UnixSocketClient(proxySocketPath.isEmpty() ? QmiProxy.defaultSocketPath() : proxySocketPath, debug);
+        } else {
+            String devicePath = config.getString("device");
+            if (devicePath == null) {
+                devicePath = DeviceDiscovery.findQmiDevice(DEFAULT_DEVICE_PATH);
+            }
+            LinuxFileClient fileClient = new LinuxFileClient(devicePath, debug);
+            String leases = config.getString("clientIdLeases");
+            if (leases != null) {
+                fileClient.useClientIdLeaseFile("reclaim".equals(leases));
+            }
+            if (config.getBoolean("recovery", true)) {
+                fileClient.enableRecovery();
+            }
+            qmiClient = fileClient;
+        }
+
+        if (config.getBoolean("virtualThreads", false) && VirtualThreads.isSupported()) {
+            qmiClient.setThreadFactory(VirtualThreads.factory());
+        }
+        String traceFile = config.getString("traceFile");
+        if (traceFile != null) {
+            final TransactionTracer tracer = qmiClient.enableTracing(config.getInt("traceCapacity", 100000));
+            final Path tracePath = Paths.get(traceFile);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    tracer.writeChromeTrace(tracePath);
+                } catch (IOException e) {
+                    System.err.println("unable to write QMI trace to "+tracePath+": "+e);
+                }
+            }, "QmiTrace"));
+        }
+        // the UIM client ID is needed for any card access, so have it ready before the first APDU
+        qmiClient.setPreallocatedServices(ServiceCode.Uim);
+        qmiClient.start();
+        // the message pumps don't keep the JVM running, so release the client IDs on the way out
+        final Client startedClient = qmiClient;
+        Runtime.getRuntime().addShutdownHook(new Thread(startedClient::stop, "QmiShutdown"));
+        return qmiClient;
+    }
+
+    private static void fetchDeviceInfo(final Client qmiClient) {
+        // nobody needs it to use a card, so don't hold anything up for it
+        Thread thread = new Thread(() -> {
+            try {
+                sDeviceInfo = DeviceInfo.query(qmiClient);
+            } catch (QmiException e) {
+                // leave it unknown
+            }
+        }, "QmiDeviceInfo");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the modem's identification, which is fetched in the background once the terminals are first used.
+     * @return the device info, or null if not (yet) known
+     */
+    public static DeviceInfo getDeviceInfo() {
+        return sDeviceInfo;
+    }
 }
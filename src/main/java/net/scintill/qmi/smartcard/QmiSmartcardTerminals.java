@@ -17,6 +17,8 @@
 package net.scintill.qmi.smartcard;
 
 import net.scintill.qmi.QmiException;
+import net.scintill.qmi.SapClient;
+import net.scintill.qmi.UimCardStatus;
 
 import javax.smartcardio.Card;
 import javax.smartcardio.CardException;
@@ -29,28 +31,132 @@ public class QmiSmartcardTerminals extends CardTerminals {
 
     static final QmiSmartcardTerminals sInstance = new QmiSmartcardTerminals();
 
+    // UIM slots are numbered from 1; dual-SIM modems have two
+    private static final int MAX_SLOTS = 2;
+    private static final int MAX_APDUS_IN_FLIGHT =
+            ProviderConfig.get().getInt("maxApdusInFlight", SapClient.DEFAULT_MAX_APDUS_IN_FLIGHT);
+    private static final int APDU_TIMEOUT =
+            ProviderConfig.get().getInt("apduTimeout", SapClient.DEFAULT_REQUEST_TIMEOUT);
+    private final QmiSmartcardTerminal[] terminals = new QmiSmartcardTerminal[MAX_SLOTS];
+
+    private UimCardStatus cardStatus;
+    // presence in each slot as of the last waitForChange(), for CARD_INSERTION/CARD_REMOVAL
+    private final boolean[] lastSeenPresent = new boolean[MAX_SLOTS];
+
+    private QmiSmartcardTerminals() {
+        List<ApduStats> allStats = new ArrayList<>(MAX_SLOTS);
+        for (int i = 0; i < MAX_SLOTS; i++) {
+            terminals[i] = new QmiSmartcardTerminal((byte) (i + 1));
+            allStats.add(terminals[i].stats);
+        }
+        // this runs in the provider's static initialization, where a failure would make the provider unusable
+        try {
+            ApduStats.publish(allStats, ProviderConfig.get());
+        } catch (RuntimeException e) {
+            System.err.println("unable to publish APDU statistics: " + e);
+        }
+    }
+
+    /**
+     * Get the card status cache, querying the modem the first time.
+     * @return the cache
+     * @throws CardException
+     */
+    /* package */ synchronized UimCardStatus getCardStatus() throws CardException {
+        if (cardStatus == null) {
+            UimCardStatus newCardStatus = new UimCardStatus(QmiSmartcardProvider.getClient());
+            try {
+                newCardStatus.refresh();
+            } catch (QmiException e) {
+                throw new CardException("QMI error getting card status", e);
+            }
+            cardStatus = newCardStatus;
+            for (int i = 0; i < MAX_SLOTS; i++) {
+                lastSeenPresent[i] = cardStatus.isCardPresent(i + 1);
+            }
+        }
+        return cardStatus;
+    }
+
     @Override
     public List<CardTerminal> list(State state) throws CardException {
-        List<CardTerminal> l = new ArrayList<>(1);
-        if (state == State.CARD_PRESENT || state == State.ALL) {
-            // TODO handle multi-slot?
-            l.add(new QmiSmartcardTerminal((byte) 1));
+        // slot 1 is always listed, even if the modem didn't report it
+        int slotCount = Math.max(1, Math.min(MAX_SLOTS, getCardStatus().getSlotCount()));
+        List<CardTerminal> l = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            QmiSmartcardTerminal terminal = terminals[i];
+            boolean present = terminal.isCardPresent();
+            switch (state) {
+                case ALL:
+                    l.add(terminal);
+                    break;
+                case CARD_PRESENT:
+                    if (present) l.add(terminal);
+                    break;
+                case CARD_ABSENT:
+                    if (!present) l.add(terminal);
+                    break;
+                case CARD_INSERTION:
+                    synchronized (this) {
+                        if (present && !lastSeenPresent[i]) l.add(terminal);
+                    }
+                    break;
+                case CARD_REMOVAL:
+                    synchronized (this) {
+                        if (!present && lastSeenPresent[i]) l.add(terminal);
+                    }
+                    break;
+            }
         }
         return l;
     }
 
     @Override
-    public boolean waitForChange(long l) throws CardException {
-        throw new CardException("not implemented");
+    public boolean waitForChange(long timeout) throws CardException {
+        if (timeout < 0) throw new IllegalArgumentException("negative timeout");
+
+        UimCardStatus status = getCardStatus();
+        long generation = status.getGeneration();
+        // a change since the last call counts, even if nobody was waiting for it
+        if (!presenceChanged(status)) {
+            try {
+                if (!status.awaitChange(generation, timeout)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                throw new CardException("interrupted");
+            }
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < MAX_SLOTS; i++) {
+                lastSeenPresent[i] = status.isCardPresent(i + 1);
+            }
+        }
+        return true;
+    }
+
+    private synchronized boolean presenceChanged(UimCardStatus status) {
+        for (int i = 0; i < MAX_SLOTS; i++) {
+            if (status.isCardPresent(i + 1) != lastSeenPresent[i]) return true;
+        }
+        return false;
     }
 
     static class QmiSmartcardTerminal extends CardTerminal {
 
         private byte slot;
         private Card card;
+        private volatile SapClient sapClient;
+        // kept across cards, like the SAP client
+        private final ApduStats stats;
 
         public QmiSmartcardTerminal(byte slot) {
             this.slot = slot;
+            this.stats = new ApduStats(slot, () -> {
+                SapClient client = sapClient;
+                return (client == null) ? 0 : client.getAccessDeniedCount();
+            });
         }
 
         @Override
@@ -63,7 +169,7 @@ public class QmiSmartcardTerminals extends CardTerminals {
             // TODO implement protocol? is it possible?
             if (card == null) {
                 try {
-                    card = new QmiSmartcardCard(slot, QmiSmartcardProvider.sQmiClient, this);
+                    card = new QmiSmartcardCard(slot, QmiSmartcardProvider.getClient(), this);
                 } catch (QmiException e) {
                     throw new CardException("QMI card exception", e);
                 }
@@ -74,17 +180,40 @@ public class QmiSmartcardTerminals extends CardTerminals {
 
         @Override
         public boolean isCardPresent() throws CardException {
-            return true;
+            return sInstance.getCardStatus().isCardPresent(slot);
         }
 
         @Override
-        public boolean waitForCardPresent(long l) throws CardException {
-            throw new RuntimeException("not implemented");
+        public boolean waitForCardPresent(long timeout) throws CardException {
+            return waitForCardPresent(true, timeout);
         }
 
         @Override
-        public boolean waitForCardAbsent(long l) throws CardException {
-            throw new RuntimeException("not implemented");
+        public boolean waitForCardAbsent(long timeout) throws CardException {
+            return waitForCardPresent(false, timeout);
+        }
+
+        private boolean waitForCardPresent(boolean present, long timeout) throws CardException {
+            if (timeout < 0) throw new IllegalArgumentException("negative timeout");
+            try {
+                return sInstance.getCardStatus().awaitCardPresent(slot, present, timeout);
+            } catch (InterruptedException e) {
+                throw new CardException("interrupted");
+            }
+        }
+
+        /* package */ synchronized SapClient getSapClient() throws CardException {
+            if (sapClient == null) {
+                SapClient newSapClient = new SapClient(QmiSmartcardProvider.getClient(), slot);
+                newSapClient.setMaxApdusInFlight(MAX_APDUS_IN_FLIGHT);
+                newSapClient.setRequestTimeout(APDU_TIMEOUT);
+                sapClient = newSapClient;
+            }
+            return sapClient;
+        }
+
+        /* package */ ApduStats getStats() {
+            return stats;
         }
 
         /* package */ void cardDisconnectNotify() {
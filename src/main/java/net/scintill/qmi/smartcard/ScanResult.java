@@ -0,0 +1,82 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi.smartcard;
+
+/**
+ * The outcome of one ScanUnit.
+ * @param <R> the result type
+ */
+public class ScanResult<R> {
+
+    private final int index;
+    private final R value;
+    private final Exception error;
+    private final int attempts;
+    private final String terminalName;
+
+    ScanResult(int index, R value, Exception error, int attempts, String terminalName) {
+        this.index = index;
+        this.value = value;
+        this.error = error;
+        this.attempts = attempts;
+        this.terminalName = terminalName;
+    }
+
+    /**
+     * @return the unit's position in the list given to ScanScheduler.run()
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return the unit's result, or null if it failed
+     */
+    public R getValue() {
+        return value;
+    }
+
+    /**
+     * @return the error from the last attempt, or null if the unit succeeded
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return how many times the unit was run
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the terminal the unit last ran on, or null if it never ran
+     */
+    public String getTerminalName() {
+        return terminalName;
+    }
+
+    @Override
+    public String toString() {
+        return "unit "+index+(isSuccess() ? " ok" : " failed ("+error+")")+" after "+attempts+" attempt(s) on "+terminalName;
+    }
+}
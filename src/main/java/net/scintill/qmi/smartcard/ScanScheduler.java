@@ -0,0 +1,357 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi.smartcard;
+
+import javax.annotation.Nullable;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Runs the units of a scan job across several cards at once. Each terminal is held by one worker thread for the
+ * whole job. The units are dealt out to the workers in contiguous blocks; a worker that runs out takes units from
+ * the far end of another worker's block (work stealing), so a fast card is never idle while a slow one has a backlog.
+ * <p>
+ * A unit that fails is retried on another card, up to a number of attempts. The card it failed on is reset before
+ * its next unit, and a card that fails several units in a row is given up on; its remaining units go to the other
+ * cards.
+ */
+public class ScanScheduler {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final int DEFAULT_CARD_FAILURE_LIMIT = 3;
+
+    // how long an idle worker waits before looking for work again, in case it missed a signal
+    private static final long IDLE_WAIT_MS = 100;
+
+    private final List<CardTerminal> terminals;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private int cardFailureLimit = DEFAULT_CARD_FAILURE_LIMIT;
+    private ThreadFactory threadFactory = Thread::new;
+
+    /**
+     * @param terminals the terminals to use, which should not be used by anything else while a job runs
+     */
+    public ScanScheduler(List<CardTerminal> terminals) {
+        if (terminals.isEmpty()) throw new IllegalArgumentException("no terminals");
+        this.terminals = new ArrayList<>(terminals);
+    }
+
+    /**
+     * Make a scheduler for every QMI terminal with a card present.
+     * @return the scheduler
+     * @throws CardException if there are no cards
+     */
+    public static ScanScheduler forPresentCards() throws CardException {
+        List<CardTerminal> terminals = QmiSmartcardTerminals.sInstance.list(CardTerminals.State.CARD_PRESENT);
+        if (terminals.isEmpty()) throw new CardException("no cards present");
+        return new ScanScheduler(terminals);
+    }
+
+    /**
+     * @param maxAttempts how many times to run a unit before recording it as failed
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param cardFailureLimit how many units in a row may fail on a card before it is given up on
+     */
+    public void setCardFailureLimit(int cardFailureLimit) {
+        this.cardFailureLimit = cardFailureLimit;
+    }
+
+    /**
+     * @param threadFactory the factory for worker threads, e.g. VirtualThreads.factory()
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Run a job, waiting until every unit has succeeded or failed.
+     * @param units
+     * @param listener optionally told of each result as it comes (on a worker thread)
+     * @return the results, in unit order
+     * @throws InterruptedException
+     */
+    public <R> List<ScanResult<R>> run(List<? extends ScanUnit<R>> units, @Nullable Consumer<ScanResult<R>> listener)
+            throws InterruptedException {
+        Job<R> job = new Job<>(units, listener);
+        List<Thread> threads = new ArrayList<>(terminals.size());
+        for (int i = 0; i < terminals.size(); i++) {
+            final int worker = i;
+            Thread thread = threadFactory.newThread(() -> job.runWorker(worker));
+            thread.setName("ScanWorker-"+terminals.get(i).getName());
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            throw e;
+        }
+
+        List<ScanResult<R>> results = new ArrayList<>(units.size());
+        for (int i = 0; i < units.size(); i++) {
+            results.add(job.results.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Run a job. See run(List, Consumer).
+     */
+    public <R> List<ScanResult<R>> run(List<? extends ScanUnit<R>> units) throws InterruptedException {
+        return run(units, null);
+    }
+
+    private static class Attempt<R> {
+        final int index;
+        final ScanUnit<R> unit;
+        int attempts = 0;
+        int lastWorker = -1;
+
+        Attempt(int index, ScanUnit<R> unit) {
+            this.index = index;
+            this.unit = unit;
+        }
+    }
+
+    private class Job<R> {
+        final List<Deque<Attempt<R>>> deques = new ArrayList<>();
+        final AtomicReferenceArray<ScanResult<R>> results;
+        final Consumer<ScanResult<R>> listener;
+        final AtomicInteger pending;
+        final AtomicInteger liveWorkers = new AtomicInteger(terminals.size());
+        final AtomicIntegerArray retired = new AtomicIntegerArray(terminals.size());
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition workChanged = lock.newCondition();
+
+        Job(List<? extends ScanUnit<R>> units, Consumer<ScanResult<R>> listener) {
+            this.results = new AtomicReferenceArray<>(units.size());
+            this.listener = listener;
+            this.pending = new AtomicInteger(units.size());
+
+            final int workers = terminals.size();
+            for (int i = 0; i < workers; i++) {
+                deques.add(new ConcurrentLinkedDeque<>());
+            }
+            // contiguous blocks, so each card works through neighbouring units
+            for (int i = 0; i < units.size(); i++) {
+                deques.get((int) ((long) i * workers / units.size())).addLast(new Attempt<>(i, units.get(i)));
+            }
+        }
+
+        void runWorker(int worker) {
+            CardTerminal terminal = terminals.get(worker);
+            Card card = null;
+            CardChannel channel = null;
+            int consecutiveFailures = 0;
+
+            try {
+                for (;;) {
+                    Attempt<R> attempt = next(worker);
+                    if (attempt == null) return;
+
+                    Exception error;
+                    if (channel == null) {
+                        try {
+                            card = terminal.connect("*");
+                            channel = card.getBasicChannel();
+                        } catch (CardException | RuntimeException e) {
+                            // not the unit's fault, so it doesn't count as an attempt
+                            requeue(attempt, worker);
+                            if (++consecutiveFailures >= cardFailureLimit) {
+                                retire(worker);
+                                return;
+                            }
+                            continue;
+                        }
+                    }
+
+                    attempt.attempts++;
+                    attempt.lastWorker = worker;
+                    try {
+                        R value = attempt.unit.run(channel);
+                        complete(attempt, value, null, terminal);
+                        consecutiveFailures = 0;
+                        continue;
+                    } catch (CardException | RuntimeException e) {
+                        error = e;
+                    }
+
+                    if (attempt.attempts >= maxAttempts) {
+                        complete(attempt, null, error, terminal);
+                    } else {
+                        requeue(attempt, worker);
+                    }
+                    // get the card back to a known state before its next unit
+                    disconnectQuietly(card, true);
+                    card = null;
+                    channel = null;
+                    if (++consecutiveFailures >= cardFailureLimit) {
+                        retire(worker);
+                        return;
+                    }
+                }
+            } finally {
+                disconnectQuietly(card, false);
+            }
+        }
+
+        /**
+         * Get the next unit for a worker: from the front of its own deque, or else from the back of another's.
+         * @return the unit, or null once all units are finished
+         */
+        private Attempt<R> next(int worker) {
+            for (;;) {
+                Attempt<R> attempt = deques.get(worker).pollFirst();
+                if (attempt == null) attempt = steal(worker);
+                if (attempt != null) return attempt;
+                if (pending.get() == 0) return null;
+
+                // units are still running elsewhere, and may fail back to us
+                lock.lock();
+                try {
+                    if (pending.get() != 0 && isEmpty()) {
+                        workChanged.await(IDLE_WAIT_MS, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private Attempt<R> steal(int worker) {
+            for (int i = 1; i < deques.size(); i++) {
+                Deque<Attempt<R>> victim = deques.get((worker + i) % deques.size());
+                Attempt<R> attempt = victim.pollLast();
+                if (attempt == null) continue;
+                if (attempt.lastWorker == worker && liveWorkers.get() > 1) {
+                    // it already failed on this card; leave it for another
+                    victim.offerLast(attempt);
+                    continue;
+                }
+                return attempt;
+            }
+            return null;
+        }
+
+        private boolean isEmpty() {
+            for (Deque<Attempt<R>> deque : deques) {
+                if (!deque.isEmpty()) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Queue a unit to be retried, on another card if there is one.
+         */
+        private void requeue(Attempt<R> attempt, int fromWorker) {
+            int target = fromWorker;
+            for (int i = 1; i < deques.size(); i++) {
+                int candidate = (fromWorker + i) % deques.size();
+                if (retired.get(candidate) == 0) {
+                    target = candidate;
+                    break;
+                }
+            }
+            // at the front, so it's retried soon rather than being the last unit standing
+            deques.get(target).offerFirst(attempt);
+            signalWorkChanged();
+        }
+
+        private void retire(int worker) {
+            retired.set(worker, 1);
+            if (liveWorkers.decrementAndGet() == 0) {
+                // nobody left to run anything
+                CardException noCards = new CardException("no usable cards left");
+                for (Deque<Attempt<R>> deque : deques) {
+                    Attempt<R> attempt;
+                    while ((attempt = deque.pollFirst()) != null) {
+                        complete(attempt, null, noCards,
+                                (attempt.lastWorker >= 0) ? terminals.get(attempt.lastWorker) : null);
+                    }
+                }
+            } else {
+                Deque<Attempt<R>> own = deques.get(worker);
+                Attempt<R> attempt;
+                while ((attempt = own.pollFirst()) != null) {
+                    requeue(attempt, worker);
+                }
+            }
+            signalWorkChanged();
+        }
+
+        private void complete(Attempt<R> attempt, R value, Exception error, @Nullable CardTerminal terminal) {
+            ScanResult<R> result = new ScanResult<>(attempt.index, value, error, attempt.attempts,
+                    (terminal != null) ? terminal.getName() : null);
+            results.set(attempt.index, result);
+            if (listener != null) listener.accept(result);
+            if (pending.decrementAndGet() == 0) {
+                signalWorkChanged();
+            }
+        }
+
+        private void signalWorkChanged() {
+            lock.lock();
+            try {
+                workChanged.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static void disconnectQuietly(@Nullable Card card, boolean reset) {
+        if (card == null) return;
+        try {
+            // QmiSmartcardCard follows SIMTester in taking the argument as "don't reset"; see its disconnect()
+            card.disconnect((card instanceof QmiSmartcardCard) ? !reset : reset);
+        } catch (CardException | RuntimeException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of qmismartcard.
+ *
+ * qmismartcard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * qmismartcard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with qmismartcard.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package net.scintill.qmi.smartcard;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A piece of a scan job, run by ScanScheduler on whichever card is free. A unit may be retried on another card
+ * if it fails, so it should not depend on state left by earlier units.
+ * @param <R> the result type
+ */
+public interface ScanUnit<R> {
+
+    /**
+     * Run the unit.
+     * @param channel the basic channel of the card to use
+     * @return the result
+     * @throws CardException to have the unit retried (on another card, if there is one)
+     */
+    R run(CardChannel channel) throws CardException;
+
+    /**
+     * Scans a batch of items, e.g. files to read or APDUs of a script.
+     */
+    interface BatchScan<T, R> {
+        R run(CardChannel channel, List<T> batch) throws CardException;
+    }
+
+    /**
+     * Scans a range of numbers, e.g. TARs.
+     */
+    interface RangeScan<R> {
+        /**
+         * @param channel
+         * @param from first number, inclusive
+         * @param to last number, exclusive
+         */
+        R run(CardChannel channel, int from, int to) throws CardException;
+    }
+
+    /**
+     * Split a list of items into units.
+     * @param items
+     * @param batchSize the most items per unit
+     * @param scan
+     * @return the units, in item order
+     */
+    static <T, R> List<ScanUnit<R>> split(List<T> items, int batchSize, BatchScan<T, R> scan) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batch size must be positive");
+        List<ScanUnit<R>> units = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += batchSize) {
+            final List<T> batch = new ArrayList<>(items.subList(i, Math.min(items.size(), i + batchSize)));
+            units.add(channel -> scan.run(channel, batch));
+        }
+        return units;
+    }
+
+    /**
+     * Split a range of numbers into units.
+     * @param from first number, inclusive
+     * @param to last number, exclusive
+     * @param batchSize the most numbers per unit
+     * @param scan
+     * @return the units, in ascending order
+     */
+    static <R> List<ScanUnit<R>> splitRange(int from, int to, int batchSize, RangeScan<R> scan) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batch size must be positive");
+        List<ScanUnit<R>> units = new ArrayList<>();
+        for (long start = from; start < to; start += batchSize) {
+            final int unitFrom = (int) start;
+            final int unitTo = (int) Math.min(to, start + batchSize);
+            units.add(channel -> scan.run(channel, unitFrom, unitTo));
+        }
+        return units;
+    }
+}